@@ -0,0 +1,134 @@
+package com.patnox.shapeshifter.benchmarks;
+
+/**
+ * Fixed benchmark inputs. Every document is built deterministically, so results of different runs
+ * and different commits are comparable.
+ * @author patnox
+ */
+public final class Documents
+{
+    /**
+     * The approximate size of every document in characters.
+     */
+    public static final int TARGET_SIZE = 1 << 20;
+
+    private final String text;
+    private final int shapes;
+    private final int depth;
+
+    private Documents(String text, int shapes, int depth)
+    {
+        this.text = text;
+        this.shapes = shapes;
+        this.depth = depth;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the number of shapes in the document.
+     */
+    public int getShapes() {
+        return shapes;
+    }
+
+    /**
+     * Returns the deepest nesting level in the document.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Creates the document of the given kind: <code>deep</code>, <code>wide</code>,
+     * <code>longLabels</code> or <code>manyRoots</code>.
+     */
+    public static Documents create(String kind)
+    {
+        switch (kind)
+        {
+            case "deep":
+                return deep();
+            case "wide":
+                return wide();
+            case "longLabels":
+                return longLabels();
+            case "manyRoots":
+                return manyRoots();
+            default:
+                throw new IllegalArgumentException("unknown document kind: " + kind);
+        }
+    }
+
+    // repeated chains of 10000 nested circles, each ending in a square
+    private static Documents deep()
+    {
+        int depth = 10000;
+        StringBuilder builder = new StringBuilder(TARGET_SIZE + 64);
+        int shapes = 0;
+        while (builder.length() < TARGET_SIZE)
+        {
+            for (int i = 0; i < depth; i++)
+            {
+                builder.append("(AB");
+            }
+            builder.append("[12]");
+            for (int i = 0; i < depth; i++)
+            {
+                builder.append(')');
+            }
+            shapes += depth + 1;
+        }
+        return new Documents(builder.toString(), shapes, depth + 1);
+    }
+
+    // a single circle with one square child after another
+    private static Documents wide()
+    {
+        StringBuilder builder = new StringBuilder(TARGET_SIZE + 64);
+        builder.append("(WIDE");
+        int shapes = 1;
+        while (builder.length() < TARGET_SIZE)
+        {
+            builder.append('[').append(shapes).append(']');
+            shapes++;
+        }
+        builder.append(')');
+        return new Documents(builder.toString(), shapes, 2);
+    }
+
+    // small trees whose labels are 64 characters long
+    private static Documents longLabels()
+    {
+        StringBuilder circle = new StringBuilder();
+        StringBuilder square = new StringBuilder();
+        for (int i = 0; i < 64; i++)
+        {
+            circle.append((char)('A' + i % 26));
+            square.append((char)('1' + i % 9));
+        }
+        StringBuilder builder = new StringBuilder(TARGET_SIZE + 256);
+        int shapes = 0;
+        while (builder.length() < TARGET_SIZE)
+        {
+            builder.append('(').append(circle).append('[').append(square).append("](").append(circle).append("))");
+            shapes += 3;
+        }
+        return new Documents(builder.toString(), shapes, 2);
+    }
+
+    // the README example over and over, as independent top-level shapes
+    private static Documents manyRoots()
+    {
+        StringBuilder builder = new StringBuilder(TARGET_SIZE + 64);
+        int shapes = 0;
+        while (builder.length() < TARGET_SIZE)
+        {
+            builder.append("[12](BALL(INK[1[35]](CHARLIE)))\n");
+            shapes += 6;
+        }
+        return new Documents(builder.toString(), shapes, 4);
+    }
+}
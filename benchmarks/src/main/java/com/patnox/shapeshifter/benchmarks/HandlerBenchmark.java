@@ -0,0 +1,78 @@
+package com.patnox.shapeshifter.benchmarks;
+
+import com.patnox.shapeshifter.Parser;
+import com.patnox.shapeshifter.ShapeArena;
+import com.patnox.shapeshifter.ShapesHandler;
+import com.patnox.shapeshifter.ShapesHandlerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of building a tree on top of scanning, by comparing handlers that build
+ * different representations with a handler that ignores all events.
+ * @author patnox
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HandlerBenchmark
+{
+    @Param({"deep", "wide", "longLabels", "manyRoots"})
+    public String document;
+
+    private Documents input;
+
+    @Setup
+    public void setUp()
+    {
+        input = Documents.create(document);
+    }
+
+    @Benchmark
+    public Object noOpHandler(Throughput throughput)
+    {
+        ShapesHandler<Object, Object> handler = new ShapesHandler<Object, Object>() {};
+        parse(handler);
+        throughput.add(input);
+        return handler;
+    }
+
+    @Benchmark
+    public Object shapesHandlerImpl(Throughput throughput)
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        parse(handler);
+        throughput.add(input);
+        return handler.getParent();
+    }
+
+    @Benchmark
+    public Object shapeArena(Throughput throughput)
+    {
+        ShapeArena arena = new ShapeArena(input.getShapes());
+        parse(arena);
+        throughput.add(input);
+        return arena;
+    }
+
+    private void parse(ShapesHandler<?, ?> handler)
+    {
+        Parser parser = new Parser(handler);
+        parser.setMaxNestingLevel(input.getDepth());
+        parser.parse(input.getText());
+    }
+}
@@ -0,0 +1,79 @@
+package com.patnox.shapeshifter.benchmarks;
+
+import com.patnox.shapeshifter.Parser;
+import com.patnox.shapeshifter.ShapesHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the raw cost of scanning, with a handler that ignores all events, for the string entry
+ * point and the reader entry point at different buffer sizes, and of validating a string.
+ * @author patnox
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParserBenchmark
+{
+    @Param({"deep", "wide", "longLabels", "manyRoots"})
+    public String document;
+
+    private Documents input;
+    private Parser parser;
+
+    @Setup
+    public void setUp()
+    {
+        input = Documents.create(document);
+        parser = new Parser(new ShapesHandler<Object, Object>() {});
+        parser.setMaxNestingLevel(input.getDepth());
+    }
+
+    @Benchmark
+    public void parseString(Throughput throughput)
+    {
+        parser.parse(input.getText());
+        throughput.add(input);
+    }
+
+    @Benchmark
+    public void validateString(Throughput throughput)
+    {
+        parser.validate(input.getText());
+        throughput.add(input);
+    }
+
+    @Benchmark
+    public void parseReader(ReaderState reader, Throughput throughput) throws IOException
+    {
+        parser.parse(new StringReader(input.getText()), reader.bufferSize);
+        throughput.add(input);
+    }
+
+    /**
+     * The buffer sizes for {@link #parseReader}, kept out of the benchmark state so that the other
+     * benchmarks are not repeated for every buffer size.
+     */
+    @State(Scope.Benchmark)
+    public static class ReaderState
+    {
+        @Param({"1024", "65536"})
+        public int bufferSize;
+    }
+}
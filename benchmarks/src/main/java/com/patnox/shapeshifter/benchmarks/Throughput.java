@@ -0,0 +1,33 @@
+package com.patnox.shapeshifter.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary benchmark results. JMH reports these counters as rates, i.e. in MB/s and shapes/s next
+ * to the primary ops/s score.
+ * @author patnox
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput
+{
+    public double megabytes;
+    public long shapes;
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        megabytes = 0;
+        shapes = 0;
+    }
+
+    void add(Documents document)
+    {
+        megabytes += document.getText().length() / 1e6;
+        shapes += document.getShapes();
+    }
+}
@@ -0,0 +1,508 @@
+package com.patnox.shapeshifter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Parses many small independent documents concurrently, e.g. one document per line of a stream or
+ * one per file of a directory. The documents are read on the calling thread and parsed as separate
+ * tasks with pooled parsers, see {@link ParserPool}. The results, including parse errors, are passed
+ * to a consumer on the calling thread in input order. Example:
+ *
+ * <pre>
+ * BatchParser batch = new BatchParser();
+ * batch.setConcurrency(8);
+ * batch.parseLines(reader, result -&gt; {
+ *     if (result.isValid()) {
+ *         store(result.getShapes());
+ *     }
+ * });
+ * </pre>
+ * <p>
+ * At most {@link #setConcurrency(int) concurrency} documents are parsed at once and at most
+ * {@link #setQueueDepth(int) queue depth} documents are read ahead of the consumer. When that many
+ * results are waiting, reading stops until the oldest result has been consumed, so bursty input or
+ * a slow consumer cannot run out of memory.
+ * </p>
+ * <p>
+ * By default, tasks run on virtual threads if the Java runtime has them, and otherwise on a pool of
+ * as many threads as the concurrency. Error locations are relative to each document. A batch parser
+ * must only be used by one thread at a time.
+ * </p>
+ *
+ * @author patnox
+ */
+public class BatchParser
+{
+    private final ParserConfig config;
+    private Executor executor;
+    private int concurrency = Runtime.getRuntime().availableProcessors();
+    private int queueDepth = -1;
+
+    /**
+     * Creates a batch parser with the default configuration.
+     */
+    public BatchParser()
+    {
+        this(ParserConfig.DEFAULT);
+    }
+
+    /**
+     * Creates a batch parser with the given configuration.
+     *
+     * @param config
+     *          the configuration of all parsers
+     */
+    public BatchParser(ParserConfig config)
+    {
+        if (config == null)
+        {
+            throw new NullPointerException("config is null");
+        }
+        this.config = config;
+    }
+
+    /**
+     * Sets the executor to run the parse tasks on. By default, each batch gets its own executor on
+     * virtual threads if available, or a fixed thread pool otherwise.
+     *
+     * @param executor
+     *          the executor to parse on
+     */
+    public void setExecutor(Executor executor)
+    {
+        if (executor == null)
+        {
+            throw new NullPointerException("executor is null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the maximum number of documents that are parsed at the same time. The default is the
+     * number of processors.
+     *
+     * @param concurrency
+     *          the maximum number of concurrent parses, must be positive
+     */
+    public void setConcurrency(int concurrency)
+    {
+        if (concurrency <= 0)
+        {
+            throw new IllegalArgumentException("concurrency is zero or negative");
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the maximum number of documents that are read but whose results have not been consumed
+     * yet. The default is four times the concurrency.
+     *
+     * @param queueDepth
+     *          the maximum number of pending documents, must be positive
+     */
+    public void setQueueDepth(int queueDepth)
+    {
+        if (queueDepth <= 0)
+        {
+            throw new IllegalArgumentException("queueDepth is zero or negative");
+        }
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Parses each of the given strings as a separate document. The name of a result is its index.
+     *
+     * @param documents
+     *          the documents to parse, which are taken one by one as results are consumed
+     * @param results
+     *          receives the results in input order
+     * @throws InterruptedException
+     *           if the calling thread is interrupted while waiting for a result
+     */
+    public void parse(Iterable<String> documents, Consumer<? super Result> results) throws InterruptedException
+    {
+        if (documents == null)
+        {
+            throw new NullPointerException("documents is null");
+        }
+        Iterator<String> iterator = documents.iterator();
+        try
+        {
+            run(index -> iterator.hasNext() ? new Document(String.valueOf(index), iterator.next(), null) : null,
+                results);
+        }
+        catch (IOException exception)
+        {
+            // not reached, strings are not read
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Parses each non-blank line of the given reader as a separate document. The name of a result is
+     * <code>line</code> and its line number.
+     *
+     * @param reader
+     *          the newline-delimited documents
+     * @param results
+     *          receives the results in input order
+     * @throws IOException
+     *           if reading fails
+     * @throws InterruptedException
+     *           if the calling thread is interrupted while waiting for a result
+     */
+    public void parseLines(Reader reader, Consumer<? super Result> results) throws IOException, InterruptedException
+    {
+        if (reader == null)
+        {
+            throw new NullPointerException("reader is null");
+        }
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader);
+        int[] lineNumber = new int[1];
+        run(index ->
+        {
+            String line;
+            do
+            {
+                line = lines.readLine();
+                lineNumber[0]++;
+            }
+            while (line != null && line.trim().isEmpty());
+            return line != null ? new Document("line " + lineNumber[0], line, null) : null;
+        }, results);
+    }
+
+    /**
+     * Parses each regular file of the given directory as a separate document, in the order of their
+     * names. The files are read as UTF-8 by the parse tasks. The name of a result is the file name.
+     *
+     * @param directory
+     *          the directory with the documents
+     * @param results
+     *          receives the results in input order
+     * @throws IOException
+     *           if listing the directory or reading a file fails
+     * @throws InterruptedException
+     *           if the calling thread is interrupted while waiting for a result
+     */
+    public void parseFiles(Path directory, Consumer<? super Result> results) throws IOException, InterruptedException
+    {
+        if (directory == null)
+        {
+            throw new NullPointerException("directory is null");
+        }
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory))
+        {
+            files = list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        Iterator<Path> iterator = files.iterator();
+        run(index ->
+        {
+            if (!iterator.hasNext())
+            {
+                return null;
+            }
+            Path file = iterator.next();
+            return new Document(file.getFileName().toString(), null, file);
+        }, results);
+    }
+
+    private void run(Source source, Consumer<? super Result> results) throws IOException, InterruptedException
+    {
+        if (results == null)
+        {
+            throw new NullPointerException("results is null");
+        }
+        int depth = queueDepth > 0 ? queueDepth : 4 * concurrency;
+        ParserPool<ShapesHandlerImpl> pool = new ParserPool<>(ShapesHandlerImpl::new, config, concurrency);
+        Semaphore permits = new Semaphore(concurrency);
+        ExecutorService ownExecutor = executor == null ? newExecutor() : null;
+        Executor target = ownExecutor != null ? ownExecutor : executor;
+        ArrayDeque<FutureTask<Result>> pending = new ArrayDeque<>();
+        try
+        {
+            int index = 0;
+            Document document;
+            while ((document = source.next(index)) != null)
+            {
+                if (pending.size() >= depth)
+                {
+                    results.accept(await(pending.removeFirst()));
+                }
+                Document next = document;
+                int nextIndex = index++;
+                FutureTask<Result> task = new FutureTask<>(() -> parse(next, nextIndex, pool, permits));
+                pending.addLast(task);
+                target.execute(task);
+            }
+            while (!pending.isEmpty())
+            {
+                results.accept(await(pending.removeFirst()));
+            }
+        }
+        finally
+        {
+            for (FutureTask<Result> task : pending)
+            {
+                task.cancel(true);
+            }
+            if (ownExecutor != null)
+            {
+                ownExecutor.shutdown();
+            }
+        }
+    }
+
+    private static Result parse(Document document, int index, ParserPool<ShapesHandlerImpl> pool,
+        Semaphore permits) throws IOException, InterruptedException
+    {
+        permits.acquire();
+        try
+        {
+            String text = document.text != null ? document.text
+                : new String(Files.readAllBytes(document.file), StandardCharsets.UTF_8);
+            try (ParserPool.Lease<ShapesHandlerImpl> lease = pool.acquire())
+            {
+                lease.getParser().parse(text);
+                return new Result(index, document.name, new ShapesContainer(lease.getHandler().getParent()), null);
+            }
+            catch (ParseException exception)
+            {
+                return new Result(index, document.name, null, exception);
+            }
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    private static Result await(FutureTask<Result> task) throws IOException, InterruptedException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException exception)
+        {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns an executor on virtual threads if the runtime has them. The library targets Java 8, so
+     * the factory method is looked up reflectively.
+     */
+    private ExecutorService newExecutor()
+    {
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException exception)
+        {
+            return Executors.newFixedThreadPool(concurrency, runnable ->
+            {
+                Thread thread = new Thread(runnable, "shapeshifter-batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * The outcome of parsing one document: either its shapes or the parse error.
+     */
+    public static final class Result
+    {
+        private final int index;
+        private final String name;
+        private final ShapesContainer shapes;
+        private final ParseException error;
+
+        Result(int index, String name, ShapesContainer shapes, ParseException error)
+        {
+            this.index = index;
+            this.name = name;
+            this.shapes = shapes;
+            this.error = error;
+        }
+
+        /**
+         * Returns the position of the document in the input, starting at 0.
+         *
+         * @return the index of the document
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+
+        /**
+         * Returns the name of the document: its index, line or file name.
+         *
+         * @return the name of the document
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Returns whether the document is valid TEXT.
+         *
+         * @return <code>true</code> if the document was parsed without error
+         */
+        public boolean isValid()
+        {
+            return error == null;
+        }
+
+        /**
+         * Returns the top-level shapes of the document.
+         *
+         * @return a container with all top-level shapes, or <code>null</code> if the document is invalid
+         */
+        public ShapesContainer getShapes()
+        {
+            return shapes;
+        }
+
+        /**
+         * Returns the parse error of the document.
+         *
+         * @return the error, or <code>null</code> if the document is valid
+         */
+        public ParseException getError()
+        {
+            return error;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + (error == null ? ": " + shapes.getChildren().size() + " shapes" : ": " + error.getMessage());
+        }
+    }
+
+    private interface Source
+    {
+        /**
+         * Returns the next document, or <code>null</code> at the end of the input.
+         */
+        Document next(int index) throws IOException;
+    }
+
+    private static final class Document
+    {
+        final String name;
+        final String text;
+        final Path file;
+
+        Document(String name, String text, Path file)
+        {
+            this.name = name;
+            this.text = text;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Parses a directory with one document per file, or a file or the standard input with one
+     * document per line, and prints each error and a summary. Usage:
+     * <pre>
+     * BatchParser [-c concurrency] [-q queueDepth] [directory | file | -]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        BatchParser batch = new BatchParser();
+        String input = "-";
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-c") && i + 1 < args.length)
+            {
+                batch.setConcurrency(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("-q") && i + 1 < args.length)
+            {
+                batch.setQueueDepth(Integer.parseInt(args[++i]));
+            }
+            else if (i == args.length - 1 && !args[i].startsWith("-") || args[i].equals("-"))
+            {
+                input = args[i];
+            }
+            else
+            {
+                System.err.println("Usage: BatchParser [-c concurrency] [-q queueDepth] [directory | file | -]");
+                System.exit(1);
+            }
+        }
+        long[] counts = new long[3];
+        Consumer<Result> report = result ->
+        {
+            counts[0]++;
+            if (result.isValid())
+            {
+                counts[1] += result.getShapes().getChildren().size();
+            }
+            else
+            {
+                counts[2]++;
+                System.err.println(result);
+            }
+        };
+        long start = System.nanoTime();
+        if (input.equals("-"))
+        {
+            batch.parseLines(new InputStreamReader(System.in, StandardCharsets.UTF_8), report);
+        }
+        else if (Files.isDirectory(Paths.get(input)))
+        {
+            batch.parseFiles(Paths.get(input), report);
+        }
+        else
+        {
+            try (Reader reader = Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8))
+            {
+                batch.parseLines(reader, report);
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("Parsed " + counts[0] + " documents, " + counts[1] + " top-level shapes, " + counts[2]
+            + " errors in " + millis + " ms");
+    }
+}
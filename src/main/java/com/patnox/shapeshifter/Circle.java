@@ -15,6 +15,7 @@ public class Circle extends Shape
     }
 
     public void setRadius(int radius) {
+        checkNotFrozen();
         this.radius = radius;
     }
 
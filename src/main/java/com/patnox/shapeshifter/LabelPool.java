@@ -0,0 +1,106 @@
+package com.patnox.shapeshifter;
+
+/**
+ * A bounded pool of label strings. Documents tend to repeat the same few labels, such as
+ * <code>BALL</code> or <code>INK</code>, many times. Looking them up in a pool returns one shared
+ * <code>String</code> per distinct label instead of a new copy per shape.
+ * <p>
+ * The pool is a fixed-size, direct-mapped table: each label can only live in the slot selected by
+ * its hash, and a label that maps to an occupied slot replaces the previous one. Memory use is
+ * therefore bounded by the capacity, and frequently repeated labels stay in the pool. Labels longer
+ * than the configured maximum are never pooled.
+ * </p>
+ * <p>
+ * A pool can be shared between threads. Slots are replaced without locking, which is safe because
+ * strings are immutable; a lost update only costs a duplicate <code>String</code>.
+ * </p>
+ *
+ * @author patnox
+ * @see ShapesHandlerImpl#setLabelPool(LabelPool)
+ */
+public class LabelPool
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int DEFAULT_MAX_LABEL_LENGTH = 32;
+
+    private final String[] table;
+    private final int mask;
+    private final int maxLabelLength;
+
+    public LabelPool()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LABEL_LENGTH);
+    }
+
+    /**
+     * Creates a pool with the given number of slots.
+     *
+     * @param capacity
+     *          the number of slots, rounded up to the next power of two
+     * @param maxLabelLength
+     *          the length of the longest label to pool
+     */
+    public LabelPool(int capacity, int maxLabelLength)
+    {
+        if (capacity <= 0 || capacity > 1 << 30)
+        {
+            throw new IllegalArgumentException("capacity out of range");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+        this.table = new String[size];
+        this.mask = size - 1;
+        this.maxLabelLength = maxLabelLength;
+    }
+
+    /**
+     * Returns a string with the same characters as the given label, reusing a pooled string when
+     * there is one.
+     *
+     * @param label
+     *          the label, usually a view into a parser buffer
+     * @return a string equal to the label
+     */
+    public String intern(CharSequence label)
+    {
+        int length = label.length();
+        if (length > maxLabelLength)
+        {
+            return label.toString();
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+        {
+            hash = 31 * hash + label.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String pooled = table[slot];
+        if (pooled != null && pooled.hashCode() == hash && contentEquals(pooled, label))
+        {
+            return pooled;
+        }
+        String string = label.toString();
+        table[slot] = string;
+        return string;
+    }
+
+    private static boolean contentEquals(String string, CharSequence label)
+    {
+        int length = label.length();
+        if (string.length() != length)
+        {
+            return false;
+        }
+        for (int i = 0; i < length; i++)
+        {
+            if (string.charAt(i) != label.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
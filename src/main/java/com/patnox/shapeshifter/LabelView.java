@@ -0,0 +1,67 @@
+package com.patnox.shapeshifter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, read-only view of a label inside a parser buffer. The parser hands the same instance
+ * to the handler for every label, so a view must not be kept beyond the callback that received it.
+ * Calling <code>toString()</code> copies the label into a new <code>String</code>.
+ * @author patnox
+ */
+final class LabelView implements CharSequence
+{
+    private char[] chars;
+    private ByteBuffer bytes;
+    private int offset;
+    private int length;
+
+    LabelView reset(char[] chars, int offset, int length)
+    {
+        this.chars = chars;
+        this.bytes = null;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    LabelView reset(ByteBuffer bytes, int offset, int length)
+    {
+        this.chars = null;
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        if (index < 0 || index >= length)
+        {
+            throw new IndexOutOfBoundsException("index " + index + " out of label bounds");
+        }
+        return chars != null ? chars[offset + index] : (char)(bytes.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString()
+    {
+        if (chars != null)
+        {
+            return new String(chars, offset, length);
+        }
+        return Parser.decodeAscii(bytes, offset, length);
+    }
+}
@@ -0,0 +1,382 @@
+package com.patnox.shapeshifter;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Builds shapes on demand. Parsing only checks the input, see {@link Parser#validate(String)}, and
+ * records a {@link StructuralIndex} of its brackets. The returned shapes are {@link Circle} and
+ * {@link Square} objects whose labels and children are read from the input when they are first
+ * accessed. Example:
+ *
+ * <pre>
+ * ShapesContainer shapes = LazyShapes.parse(text);
+ * Shape first = shapes.getChildren().get(0);
+ * </pre>
+ * <p>
+ * Only the shapes that are visited are created, so the time to the first result is close to the
+ * scan speed and memory grows with the visited part of the document. The input and its index are
+ * kept as long as any unvisited shape is reachable. Skipping over a subtree to the next sibling is
+ * a single lookup, since the index records the matching closing bracket of every shape.
+ * </p>
+ * <p>
+ * Lazy shapes are not thread-safe while they are being materialized. {@link Shape#freeze()}
+ * materializes the whole tree, after which it can be shared.
+ * </p>
+ *
+ * @author patnox
+ */
+public final class LazyShapes
+{
+    private final String text;
+    private final ByteBuffer bytes;
+    private final StructuralIndex index;
+    private final int[] matches;
+
+    private LazyShapes(String text, ByteBuffer bytes, StructuralIndex index)
+    {
+        this.text = text;
+        this.bytes = bytes;
+        this.index = index;
+        matches = new int[index.size()];
+        int[] open = new int[Math.max(1, index.size() / 2)];
+        int depth = 0;
+        for (int entry = 0; entry < index.size(); entry++)
+        {
+            char ch = index.getCharacter(entry);
+            if (ch == '[' || ch == '(')
+            {
+                open[depth++] = entry;
+            }
+            else if (ch != '\n')
+            {
+                matches[open[--depth]] = entry;
+            }
+        }
+    }
+
+    /**
+     * Checks the given string and returns its top-level shapes, which are built on demand.
+     *
+     * @param string
+     *          the input string, must be valid TEXT
+     * @return a container with all top-level shapes
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public static ShapesContainer parse(String string)
+    {
+        if (string == null)
+        {
+            throw new NullPointerException("string is null");
+        }
+        new Parser(new ShapesHandlerImpl()).validate(string);
+        return new LazyContainer(new LazyShapes(string, null, StructuralIndex.of(string)));
+    }
+
+    /**
+     * Checks the remaining bytes of the given buffer and returns its top-level shapes, which are
+     * built on demand. The buffer must not be modified while shapes are still unvisited. The position
+     * of the buffer is not changed.
+     *
+     * @param input
+     *          the buffer to read the input from, must be valid TEXT
+     * @return a container with all top-level shapes
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public static ShapesContainer parse(ByteBuffer input)
+    {
+        if (input == null)
+        {
+            throw new NullPointerException("input is null");
+        }
+        new Parser(new ShapesHandlerImpl()).validate(input);
+        return new LazyContainer(new LazyShapes(null, input.duplicate(), StructuralIndex.of(input)));
+    }
+
+    /**
+     * Creates the children of the shape that opens at the given index entry, or the top-level shapes
+     * for entry -1.
+     */
+    private ArrayList<Shape> children(int entry)
+    {
+        int end = entry < 0 ? index.size() : matches[entry];
+        ArrayList<Shape> children = new ArrayList<>();
+        int next = entry + 1;
+        while (next < end)
+        {
+            char ch = index.getCharacter(next);
+            if (ch == '[')
+            {
+                children.add(new LazySquare(this, next));
+                next = matches[next] + 1;
+            }
+            else if (ch == '(')
+            {
+                children.add(new LazyCircle(this, next));
+                next = matches[next] + 1;
+            }
+            else
+            {
+                next++;
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Reads the label of the shape that opens at the given index entry, after optional whitespace.
+     */
+    private String label(int entry)
+    {
+        int start = index.getPosition(entry) + 1;
+        while (!isLabelChar(charAt(start)))
+        {
+            start++;
+        }
+        int end = start + 1;
+        while (isLabelChar(charAt(end)))
+        {
+            end++;
+        }
+        if (text != null)
+        {
+            return text.substring(start, end);
+        }
+        return Parser.decodeAscii(bytes, start, end - start);
+    }
+
+    private char charAt(int position)
+    {
+        return text != null ? text.charAt(position) : (char)(bytes.get(position) & 0xff);
+    }
+
+    private static boolean isLabelChar(char ch)
+    {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9');
+    }
+
+    private static final class LazyContainer extends ShapesContainer
+    {
+        private LazyShapes source;
+
+        LazyContainer(LazyShapes source)
+        {
+            this.source = source;
+        }
+
+        @Override
+        public ArrayList<Shape> getChildren()
+        {
+            materialize();
+            return super.getChildren();
+        }
+
+        @Override
+        public void setChildren(ArrayList<Shape> children)
+        {
+            source = null;
+            super.setChildren(children);
+        }
+
+        @Override
+        public void addChild(Shape newShape)
+        {
+            materialize();
+            super.addChild(newShape);
+        }
+
+        @Override
+        void materialize()
+        {
+            if (source != null)
+            {
+                LazyShapes shapes = source;
+                source = null;
+                super.setChildren(shapes.children(-1));
+            }
+        }
+    }
+
+    private static final class LazyCircle extends Circle
+    {
+        private LazyShapes source;
+        private final int entry;
+        private boolean labelLoaded;
+
+        LazyCircle(LazyShapes source, int entry)
+        {
+            this.source = source;
+            this.entry = entry;
+        }
+
+        @Override
+        public String getLabel()
+        {
+            loadLabel();
+            return super.getLabel();
+        }
+
+        @Override
+        public void setLabel(String label)
+        {
+            labelLoaded = true;
+            super.setLabel(label);
+        }
+
+        @Override
+        public ArrayList<Shape> getChildren()
+        {
+            loadChildren();
+            return super.getChildren();
+        }
+
+        @Override
+        public void setChildren(ArrayList<Shape> children)
+        {
+            loadLabel();
+            source = null;
+            super.setChildren(children);
+        }
+
+        @Override
+        public void addChild(Shape newShape)
+        {
+            loadChildren();
+            super.addChild(newShape);
+        }
+
+        @Override
+        void materialize()
+        {
+            loadLabel();
+            loadChildren();
+        }
+
+        private void loadLabel()
+        {
+            if (!labelLoaded)
+            {
+                labelLoaded = true;
+                super.setLabel(source.label(entry));
+            }
+        }
+
+        private void loadChildren()
+        {
+            if (source != null)
+            {
+                loadLabel();
+                LazyShapes shapes = source;
+                source = null;
+                super.setChildren(shapes.children(entry));
+            }
+        }
+    }
+
+    private static final class LazySquare extends Square
+    {
+        private LazyShapes source;
+        private final int entry;
+        private boolean labelLoaded;
+
+        LazySquare(LazyShapes source, int entry)
+        {
+            this.source = source;
+            this.entry = entry;
+        }
+
+        @Override
+        public String getLabel()
+        {
+            loadLabel();
+            return super.getLabel();
+        }
+
+        @Override
+        public void setLabel(String label)
+        {
+            labelLoaded = true;
+            super.setLabel(label);
+        }
+
+        @Override
+        public void setNumber(long number)
+        {
+            labelLoaded = true;
+            super.setNumber(number);
+        }
+
+        @Override
+        public long getNumber()
+        {
+            loadLabel();
+            return super.getNumber();
+        }
+
+        @Override
+        public BigInteger getBigNumber()
+        {
+            loadLabel();
+            return super.getBigNumber();
+        }
+
+        @Override
+        public boolean isNumeric()
+        {
+            loadLabel();
+            return super.isNumeric();
+        }
+
+        @Override
+        public ArrayList<Shape> getChildren()
+        {
+            loadChildren();
+            return super.getChildren();
+        }
+
+        @Override
+        public void setChildren(ArrayList<Shape> children)
+        {
+            loadLabel();
+            source = null;
+            super.setChildren(children);
+        }
+
+        @Override
+        public void addChild(Shape newShape)
+        {
+            loadChildren();
+            super.addChild(newShape);
+        }
+
+        @Override
+        void materialize()
+        {
+            loadLabel();
+            loadChildren();
+        }
+
+        private void loadLabel()
+        {
+            if (!labelLoaded)
+            {
+                labelLoaded = true;
+                super.setLabel(source.label(entry));
+            }
+        }
+
+        private void loadChildren()
+        {
+            if (source != null)
+            {
+                loadLabel();
+                LazyShapes shapes = source;
+                source = null;
+                super.setChildren(shapes.children(entry));
+            }
+        }
+    }
+}
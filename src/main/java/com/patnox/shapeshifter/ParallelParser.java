@@ -0,0 +1,397 @@
+package com.patnox.shapeshifter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Parses documents with many top-level shapes on several cores. Top-level shapes are independent of
+ * each other, so the document is cut into sections of whole top-level shapes, which are parsed as
+ * separate tasks on a <code>ForkJoinPool</code>, each with its own handler. The results are merged
+ * into a {@link ShapesContainer} in document order.
+ * <p>
+ * Finding the sections only requires a {@link StructuralIndex} of the brackets. If that pre-scan
+ * finds something it cannot cut, such as unbalanced brackets, the document is parsed sequentially
+ * instead, so that the error is reported exactly like {@link Parser} reports it. Errors found in a
+ * section are reported with their location in the whole document.
+ * </p>
+ * <p>
+ * Documents with a single top-level shape, or that are smaller than two sections, gain nothing and
+ * are parsed on the calling thread.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ParallelParser
+{
+    private static final int DEFAULT_SECTION_SIZE = 1 << 16;
+
+    private final Supplier<? extends ShapesHandlerImpl> handlerFactory;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int sectionSize = DEFAULT_SECTION_SIZE;
+    private int maxNestingLevel = -1;
+
+    /**
+     * Creates a parallel parser that builds the result with {@link ShapesHandlerImpl}.
+     */
+    public ParallelParser()
+    {
+        this(ShapesHandlerImpl::new);
+    }
+
+    /**
+     * Creates a parallel parser that builds the result with handlers from the given factory. The
+     * factory is called once per section, possibly from several threads at once.
+     *
+     * @param handlerFactory
+     *          creates a new handler per section
+     */
+    public ParallelParser(Supplier<? extends ShapesHandlerImpl> handlerFactory)
+    {
+        if (handlerFactory == null)
+        {
+            throw new NullPointerException("handlerFactory is null");
+        }
+        this.handlerFactory = handlerFactory;
+    }
+
+    /**
+     * Sets the pool to run the section tasks on. The default is the common pool.
+     *
+     * @param pool
+     *          the pool to parse on
+     */
+    public void setPool(ForkJoinPool pool)
+    {
+        if (pool == null)
+        {
+            throw new NullPointerException("pool is null");
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the minimum size of a section in characters or bytes. Each section is parsed as one task.
+     * The default is 64 KiB.
+     *
+     * @param sectionSize
+     *          the minimum section size, must be positive
+     */
+    public void setSectionSize(int sectionSize)
+    {
+        if (sectionSize <= 0)
+        {
+            throw new IllegalArgumentException("sectionSize is zero or negative");
+        }
+        this.sectionSize = sectionSize;
+    }
+
+    /**
+     * Sets the maximum nesting level, see {@link Parser#setMaxNestingLevel(int)}.
+     *
+     * @param maxNestingLevel
+     *          the maximum nesting level, must be positive
+     */
+    public void setMaxNestingLevel(int maxNestingLevel)
+    {
+        if (maxNestingLevel <= 0)
+        {
+            throw new IllegalArgumentException("maxNestingLevel is zero or negative");
+        }
+        this.maxNestingLevel = maxNestingLevel;
+    }
+
+    /**
+     * Parses the given input string.
+     *
+     * @param string
+     *          the input string, must be valid TEXT
+     * @return a container with all top-level shapes
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public ShapesContainer parse(String string)
+    {
+        if (string == null)
+        {
+            throw new NullPointerException("string is null");
+        }
+        Sections sections = findSections(StructuralIndex.of(string), 0, string.length(), string::charAt);
+        if (sections == null)
+        {
+            return parseSequentially(string);
+        }
+        return parseSections(sections, new SectionParser()
+        {
+            @Override
+            public void parse(Parser parser, int start, int end)
+            {
+                parser.parse(string, start, end);
+            }
+        }, 0);
+    }
+
+    /**
+     * Parses the remaining bytes of the given buffer, see {@link Parser#parse(ByteBuffer)}. Sections
+     * are parsed from views of the buffer without copying. Locations are relative to the position of
+     * the buffer.
+     *
+     * @param input
+     *          the buffer to read the input from
+     * @return a container with all top-level shapes
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public ShapesContainer parse(ByteBuffer input)
+    {
+        if (input == null)
+        {
+            throw new NullPointerException("input is null");
+        }
+        int base = input.position();
+        Sections sections = findSections(StructuralIndex.of(input), base, input.limit(), input::get);
+        if (sections == null)
+        {
+            return parseSequentially(input);
+        }
+        return parseSections(sections, new SectionParser()
+        {
+            @Override
+            public void parse(Parser parser, int start, int end)
+            {
+                ByteBuffer section = input.duplicate();
+                section.limit(end);
+                section.position(start);
+                parser.parse(section);
+            }
+        }, base);
+    }
+
+    /**
+     * Cuts the input into sections along the top-level shapes found in the given index. Only the
+     * characters between top-level shapes are looked at one by one, to check that they are
+     * whitespace. Returns <code>null</code> if the input cannot be cut, or is too small to be worth
+     * cutting.
+     */
+    private Sections findSections(StructuralIndex index, int start, int end, IntUnaryOperator input)
+    {
+        Sections sections = new Sections();
+        int line = 1;
+        int lineOffset = start;
+        int gapStart = start;
+        int size = index.size();
+        for (int entry = 0; entry < size; entry++)
+        {
+            int position = index.getPosition(entry);
+            char ch = index.getCharacter(entry);
+            int depth = index.getDepth(entry);
+            if (ch == '\n')
+            {
+                line++;
+                lineOffset = position + 1;
+            }
+            else if (depth < 0)
+            {
+                return null;
+            }
+            else if (depth > 0)
+            {
+                continue;
+            }
+            else if (ch == '(' || ch == '[')
+            {
+                if (!isWhiteSpace(input, gapStart, position))
+                {
+                    return null;
+                }
+                sections.rootStart(position, line, position - lineOffset + 1);
+            }
+            else
+            {
+                sections.rootEnd(position + 1, sectionSize);
+                gapStart = position + 1;
+            }
+        }
+        if (index.getFinalDepth() != 0 || !isWhiteSpace(input, gapStart, end) || sections.finish() < 2)
+        {
+            return null;
+        }
+        return sections;
+    }
+
+    private static boolean isWhiteSpace(IntUnaryOperator input, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            int ch = input.applyAsInt(i);
+            if (ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ShapesContainer parseSections(Sections sections, SectionParser sectionParser, int base)
+    {
+        List<ArrayList<Shape>> results = pool.invoke(new SectionTask(sections, sectionParser, base, 0, sections.size));
+        int total = 0;
+        for (ArrayList<Shape> result : results)
+        {
+            total += result.size();
+        }
+        ArrayList<Shape> shapes = new ArrayList<>(total);
+        for (ArrayList<Shape> result : results)
+        {
+            shapes.addAll(result);
+        }
+        return new ShapesContainer(shapes);
+    }
+
+    private ShapesContainer parseSequentially(String string)
+    {
+        ShapesHandlerImpl handler = handlerFactory.get();
+        newParser(handler).parse(string);
+        return new ShapesContainer(handler.getParent());
+    }
+
+    private ShapesContainer parseSequentially(ByteBuffer input)
+    {
+        ShapesHandlerImpl handler = handlerFactory.get();
+        newParser(handler).parse(input);
+        return new ShapesContainer(handler.getParent());
+    }
+
+    private Parser newParser(ShapesHandlerImpl handler)
+    {
+        Parser parser = new Parser(handler);
+        if (maxNestingLevel > 0)
+        {
+            parser.setMaxNestingLevel(maxNestingLevel);
+        }
+        return parser;
+    }
+
+    private interface SectionParser
+    {
+        void parse(Parser parser, int start, int end);
+    }
+
+    /**
+     * Parses a range of sections, splitting it in halves until a single section is left.
+     */
+    private class SectionTask extends RecursiveTask<List<ArrayList<Shape>>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Sections sections;
+        private final SectionParser sectionParser;
+        private final int base;
+        private final int from;
+        private final int to;
+
+        SectionTask(Sections sections, SectionParser sectionParser, int base, int from, int to)
+        {
+            this.sections = sections;
+            this.sectionParser = sectionParser;
+            this.base = base;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<ArrayList<Shape>> compute()
+        {
+            if (to - from == 1)
+            {
+                ShapesHandlerImpl handler = handlerFactory.get();
+                Parser parser = newParser(handler);
+                int start = sections.starts[from];
+                parser.setOrigin(new Location(start - base, sections.lines[from], sections.columns[from]));
+                sectionParser.parse(parser, start, sections.ends[from]);
+                List<ArrayList<Shape>> result = new ArrayList<>(1);
+                result.add(handler.getParent());
+                return result;
+            }
+            int middle = (from + to) >>> 1;
+            SectionTask left = new SectionTask(sections, sectionParser, base, from, middle);
+            SectionTask right = new SectionTask(sections, sectionParser, base, middle, to);
+            right.fork();
+            List<ArrayList<Shape>> result;
+            try
+            {
+                result = left.compute();
+            }
+            catch (RuntimeException exception)
+            {
+                // the left error comes first in the document, but wait for the right task
+                right.quietlyJoin();
+                throw exception;
+            }
+            result.addAll(right.join());
+            return result;
+        }
+    }
+
+    /**
+     * The sections of a document, each a range of whole top-level shapes with the location of its
+     * first character.
+     */
+    private static class Sections
+    {
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int[] lines = new int[16];
+        int[] columns = new int[16];
+        int size;
+        private boolean open;
+
+        void rootStart(int offset, int line, int column)
+        {
+            if (open)
+            {
+                return;
+            }
+            if (size == starts.length)
+            {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                lines = Arrays.copyOf(lines, size * 2);
+                columns = Arrays.copyOf(columns, size * 2);
+            }
+            starts[size] = offset;
+            lines[size] = line;
+            columns[size] = column;
+            open = true;
+        }
+
+        void rootEnd(int offset, int sectionSize)
+        {
+            ends[size] = offset;
+            if (offset - starts[size] >= sectionSize)
+            {
+                size++;
+                open = false;
+            }
+        }
+
+        /**
+         * Closes the last section, which may still be below the section size, and returns the number
+         * of sections.
+         */
+        int finish()
+        {
+            if (open)
+            {
+                size++;
+                open = false;
+            }
+            return size;
+        }
+    }
+}
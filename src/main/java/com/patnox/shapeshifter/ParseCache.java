@@ -0,0 +1,335 @@
+package com.patnox.shapeshifter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of parse results keyed by the content of the parsed text. Documents that are identical to
+ * one parsed before cost a hash of the text instead of a parse. Example:
+ *
+ * <pre>
+ * ParseCache cache = new ParseCache(64 &lt;&lt; 20);
+ * ShapesContainer shapes = cache.parse(text);
+ * </pre>
+ * <p>
+ * Entries are found by a 128-bit MurmurHash3 of the characters, and the text is kept and compared on
+ * every hit, so a hash collision, accidental or crafted, never returns the shapes of another
+ * document. The cache holds up to the given estimated number of bytes retained by the cached texts
+ * and shapes, see {@link #estimateSize(Shape)}, and evicts the least recently used results first.
+ * Documents with parse errors are not cached.
+ * </p>
+ * <p>
+ * The cache is thread-safe. Results are frozen, see {@link Shape#freeze()}, so the same container
+ * can be returned for every hit. Concurrent misses for the same text may parse it more than once.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ParseCache
+{
+    private static final long NODE_SIZE = 80;
+    private static final long REFERENCE_SIZE = 4;
+    private static final long STRING_SIZE = 40;
+
+    private final long maxBytes;
+    private final ParserPool<ShapesHandlerImpl> pool;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long retainedBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache with the default parser configuration.
+     *
+     * @param maxBytes
+     *          the maximum estimated number of bytes retained by cached results, must be positive
+     */
+    public ParseCache(long maxBytes)
+    {
+        this(maxBytes, ParserConfig.DEFAULT);
+    }
+
+    /**
+     * Creates a cache that parses with the given configuration.
+     *
+     * @param maxBytes
+     *          the maximum estimated number of bytes retained by cached results, must be positive
+     * @param config
+     *          the configuration of the parsers
+     */
+    public ParseCache(long maxBytes, ParserConfig config)
+    {
+        if (maxBytes <= 0)
+        {
+            throw new IllegalArgumentException("maxBytes is zero or negative");
+        }
+        if (config == null)
+        {
+            throw new NullPointerException("config is null");
+        }
+        this.maxBytes = maxBytes;
+        this.pool = new ParserPool<>(ShapesHandlerImpl::new, config, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns the shapes of the given text, from the cache or by parsing it.
+     *
+     * @param string
+     *          the input string, must be valid TEXT
+     * @return a frozen container with all top-level shapes
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public ShapesContainer parse(String string)
+    {
+        if (string == null)
+        {
+            throw new NullPointerException("string is null");
+        }
+        Key key = Key.of(string);
+        synchronized (entries)
+        {
+            Entry entry = entries.get(key);
+            if (entry != null)
+            {
+                hits.increment();
+                return entry.shapes;
+            }
+        }
+        misses.increment();
+        ShapesContainer shapes = pool.parse(string, handler -> new ShapesContainer(handler.getParent()));
+        shapes.freeze();
+        long size = estimateSize(shapes) + STRING_SIZE + 2L * string.length();
+        if (size <= maxBytes)
+        {
+            synchronized (entries)
+            {
+                Entry previous = entries.put(key, new Entry(shapes, size));
+                retainedBytes += size - (previous != null ? previous.size : 0);
+                Iterator<Entry> eldest = entries.values().iterator();
+                while (retainedBytes > maxBytes)
+                {
+                    retainedBytes -= eldest.next().size;
+                    eldest.remove();
+                    evictions.increment();
+                }
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * Removes all results from the cache. The counters are kept.
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+            retainedBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the number of cached results.
+     *
+     * @return the number of documents in the cache
+     */
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns the estimated number of bytes retained by the cached results and their texts.
+     *
+     * @return the sum of the estimated sizes of all cached results and texts
+     */
+    public long getRetainedBytes()
+    {
+        synchronized (entries)
+        {
+            return retainedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of calls to {@link #parse(String)} that were answered from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of calls to {@link #parse(String)} that parsed the text.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of results removed to stay within the size limit.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Estimates the number of bytes retained by the given shape and its descendants: the shape
+     * objects, their child lists and labels.
+     *
+     * @param shape
+     *          the root of the tree
+     * @return the estimated size in bytes
+     */
+    public static long estimateSize(Shape shape)
+    {
+        long size = 0;
+        ArrayList<Shape> stack = new ArrayList<>();
+        stack.add(shape);
+        while (!stack.isEmpty())
+        {
+            Shape next = stack.remove(stack.size() - 1);
+            ArrayList<Shape> children = next.getChildren();
+            size += NODE_SIZE + REFERENCE_SIZE * children.size();
+            if (!(next instanceof Square && ((Square)next).isNumeric()))
+            {
+                size += STRING_SIZE + 2L * next.getLabel().length();
+            }
+            stack.addAll(children);
+        }
+        return size;
+    }
+
+    private static final class Entry
+    {
+        final ShapesContainer shapes;
+        final long size;
+
+        Entry(ShapesContainer shapes, long size)
+        {
+            this.shapes = shapes;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A text together with the 128-bit MurmurHash3 (x64 variant) of its UTF-16 chars. Keys with equal
+     * hashes are only equal if their texts are.
+     */
+    static final class Key
+    {
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        final long high;
+        final long low;
+        final String text;
+
+        Key(String text, long high, long low)
+        {
+            this.text = text;
+            this.high = high;
+            this.low = low;
+        }
+
+        static Key of(CharSequence text)
+        {
+            int length = text.length();
+            long h1 = 0;
+            long h2 = 0;
+            int i = 0;
+            for (; i + 8 <= length; i += 8)
+            {
+                long k1 = pack(text, i, 4);
+                long k2 = pack(text, i + 4, 4);
+                h1 ^= mixK1(k1);
+                h1 = Long.rotateLeft(h1, 27) + h2;
+                h1 = h1 * 5 + 0x52dce729;
+                h2 ^= mixK2(k2);
+                h2 = Long.rotateLeft(h2, 31) + h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+            int tail = length - i;
+            if (tail > 4)
+            {
+                h2 ^= mixK2(pack(text, i + 4, tail - 4));
+            }
+            if (tail > 0)
+            {
+                h1 ^= mixK1(pack(text, i, Math.min(tail, 4)));
+            }
+            h1 ^= 2L * length;
+            h2 ^= 2L * length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+            return new Key(text.toString(), h1, h2);
+        }
+
+        private static long pack(CharSequence text, int start, int count)
+        {
+            long k = 0;
+            for (int j = 0; j < count; j++)
+            {
+                k |= (long)text.charAt(start + j) << (16 * j);
+            }
+            return k;
+        }
+
+        private static long mixK1(long k1)
+        {
+            return Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        private static long mixK2(long k2)
+        {
+            return Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+
+        private static long fmix(long k)
+        {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int)low;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key)obj;
+            return high == other.high && low == other.low && text.equals(other.text);
+        }
+    }
+}
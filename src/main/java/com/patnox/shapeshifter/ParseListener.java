@@ -0,0 +1,47 @@
+package com.patnox.shapeshifter;
+
+/**
+ * An observer for diagnostic parser events. Instances of this class can be attached to a
+ * {@link Parser} with {@link Parser#setParseListener(ParseListener)} to log or count what the parser
+ * finds, without touching the {@link ShapesHandler} that builds the result.
+ * <p>
+ * The default implementations of these methods do nothing. Subclasses may override only those
+ * methods they are interested in. When no listener is attached, the parser does not create any
+ * event data, so an unused listener costs nothing.
+ * </p>
+ *
+ * @author patnox
+ * @see Parser
+ */
+public abstract class ParseListener
+{
+    /**
+     * Indicates that a SQUARE has been found. This method will be called when reading the opening
+     * square bracket character (<code>'['</code>).
+     *
+     * @param location
+     *          the location of the opening bracket
+     */
+    public void squareFound(Location location) {
+    }
+
+    /**
+     * Indicates that a CIRCLE has been found. This method will be called when reading the opening
+     * parenthesis character (<code>'('</code>).
+     *
+     * @param location
+     *          the location of the opening parenthesis
+     */
+    public void circleFound(Location location) {
+    }
+
+    /**
+     * Indicates that parsing failed. This method will be called once, just before the given exception
+     * is thrown to the caller of the parser.
+     *
+     * @param exception
+     *          the exception that aborts the parse, carrying the error location
+     */
+    public void errorFound(ParseException exception) {
+    }
+}
@@ -3,8 +3,12 @@ package com.patnox.shapeshifter;
 import javax.swing.*;
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This is the main parser. It will parse the text and display all shapes in a TREE Graph
@@ -12,22 +16,123 @@ import java.util.ArrayList;
  */
 public class Parser
 {
-    private static final int MAX_NESTING_LEVEL = 1000;
+    private static final int INITIAL_STACK_SIZE = 32;
     private static final int MIN_BUFFER_SIZE = 10;
-    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    // larger label buffers are dropped on reset, so a pooled parser does not keep them forever
+    private static final int MAX_RETAINED_LABEL_CHARS = 1 << 16;
+    private static final int MAP_WINDOW_SIZE = 1 << 30;
 
-    private final ShapesHandler<Object, Object> handler;
+    // the current character while waiting for the next chunk of input, see feed(ByteBuffer)
+    private static final int NEED_MORE = -2;
+    private static final char SKIPPING_CHILDREN = 1;
+
+    /*
+     * Character classes, looked up once per input character. Anything outside the table, or mapped
+     * to zero, is not part of the shapes alphabet.
+     */
+    private static final byte DIGIT = 1;
+    private static final byte UPPER = 2;
+    private static final byte LOWER = 4;
+    private static final byte LABEL = DIGIT | UPPER | LOWER;
+    private static final byte WHITESPACE = 8;
+    private static final byte BRACKET = 16;
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    static
+    {
+        for (char c = '0'; c <= '9'; c++)
+        {
+            CHAR_CLASS[c] = DIGIT;
+        }
+        for (char c = 'A'; c <= 'Z'; c++)
+        {
+            CHAR_CLASS[c] = UPPER;
+        }
+        for (char c = 'a'; c <= 'z'; c++)
+        {
+            CHAR_CLASS[c] = LOWER;
+        }
+        CHAR_CLASS[' '] = WHITESPACE;
+        CHAR_CLASS['\t'] = WHITESPACE;
+        CHAR_CLASS['\n'] = WHITESPACE;
+        CHAR_CLASS['\r'] = WHITESPACE;
+        CHAR_CLASS['['] = BRACKET;
+        CHAR_CLASS[']'] = BRACKET;
+        CHAR_CLASS['('] = BRACKET;
+        CHAR_CLASS[')'] = BRACKET;
+    }
+
+    /**
+     * The handler for {@link #validate(String)}, which ignores all events.
+     */
+    private static final ShapesHandler<Object, Object> VALIDATOR = new ShapesHandler<Object, Object>()
+    {
+        @Override
+        protected boolean isChildLabelUsed()
+        {
+            return false;
+        }
+    };
+
+    /**
+     * Whether a handler class overrides {@link ShapesHandler#endSquareLabel(Object, long)}. Handlers
+     * that do not get numeric square labels as text, like any other label.
+     */
+    private static final ClassValue<Boolean> NUMBER_LABELS = new ClassValue<Boolean>()
+    {
+        @Override
+        protected Boolean computeValue(Class<?> type)
+        {
+            try
+            {
+                return type.getMethod("endSquareLabel", Object.class, long.class).getDeclaringClass()
+                    != ShapesHandler.class;
+            }
+            catch (NoSuchMethodException e)
+            {
+                return false;
+            }
+        }
+    };
+
+    private ShapesHandler<Object, Object> handler;
+    private final ParserConfig config;
+    private ParseListener listener;
     private Reader reader;
+    private String string;
+    private int stringPosition;
+    private int stringEnd;
     private char[] buffer;
+    private ByteBuffer bytes;
+    private FileChannel channel;
+    private long channelPosition;
     private int bufferOffset;
     private int index;
     private int fill;
     private int line;
     private int lineOffset;
+    private Location origin;
     private int current;
     private StringBuilder captureBuffer;
     private int captureStart;
     private int nestingLevel;
+    private int maxNestingLevel;
+    private char[] closers = new char[INITIAL_STACK_SIZE];
+    private Object[] objects = new Object[INITIAL_STACK_SIZE];
+    private String[] labels = new String[INITIAL_STACK_SIZE];
+    private int[] labelStarts = new int[INITIAL_STACK_SIZE];
+    private int[] labelLengths = new int[INITIAL_STACK_SIZE];
+    private char[] labelChars = new char[INITIAL_STACK_SIZE * 8];
+    private final LabelView labelView = new LabelView();
+    private long labelNumber;
+    private boolean childLabels;
+    private boolean numberLabels;
+    private int skipDepth;
+    private char skipping;
+    private boolean feeding;
+    private boolean feedEmpty;
+    private int lastBracket;
+    private boolean validating;
 //    ShapesContainer holder = new ShapesContainer();
 
     /*
@@ -37,6 +142,9 @@ public class Parser
      *                       [l|m|n|o|p|q|r|s|t|?|?]    < buffer
      *                          ^               ^
      *                       |  index           fill
+     *
+     * When parsing bytes, the same fields index into the byte buffer instead. For a mapped file the
+     * buffer is one window of the file and bufferOffset is the file position of that window.
      */
 
     /**
@@ -46,16 +154,79 @@ public class Parser
      * @param handler
      *          the handler to process parser events
      */
-    @SuppressWarnings("unchecked")
     public Parser(ShapesHandler<?, ?> handler)
+    {
+        this(handler, ParserConfig.DEFAULT);
+    }
+
+    /**
+     * Creates a new Shapes Parser with the given handler and configuration.
+     * <p>
+     * A parser can parse any number of inputs one after the other. It keeps its input buffer and
+     * stacks between inputs, so reusing a parser, e.g. through a {@link ParserPool}, avoids most
+     * allocations per input. A parser is not thread-safe.
+     * </p>
+     *
+     * @param handler
+     *          the handler to process parser events
+     * @param config
+     *          the configuration
+     */
+    @SuppressWarnings("unchecked")
+    public Parser(ShapesHandler<?, ?> handler, ParserConfig config)
     {
         if (handler == null) {
             throw new NullPointerException("handler is null");
         }
+        if (config == null) {
+            throw new NullPointerException("config is null");
+        }
         this.handler = (ShapesHandler<Object, Object>)handler;
+        this.config = config;
+        maxNestingLevel = config.getMaxNestingLevel();
         handler.parser = this;
     }
 
+    /**
+     * Returns the configuration this parser was created with.
+     *
+     * @return the configuration
+     */
+    public ParserConfig getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * Attaches a listener for diagnostic parser events, such as found shapes and errors. No listener
+     * is attached by default.
+     *
+     * @param listener
+     *          the listener to notify, or <code>null</code> to detach the current listener
+     */
+    public void setParseListener(ParseListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the maximum number of nested shapes this parser accepts. Deeper input is rejected with a
+     * {@link ParseException}. Nesting is tracked on the heap rather than on the call stack, so deep
+     * input does not risk a <code>StackOverflowError</code> regardless of the thread it is parsed on.
+     * The default is taken from the {@link ParserConfig}.
+     *
+     * @param maxNestingLevel
+     *          the maximum nesting level, must be positive
+     */
+    public void setMaxNestingLevel(int maxNestingLevel)
+    {
+        if (maxNestingLevel <= 0)
+        {
+            throw new IllegalArgumentException("maxNestingLevel is zero or negative");
+        }
+        this.maxNestingLevel = maxNestingLevel;
+    }
+
     /**
      * Parses the given input string. The input must contain a valid TEXT value, optionally padded
      * with whitespace.
@@ -69,25 +240,49 @@ public class Parser
         if (string == null) {
             throw new NullPointerException("string is null");
         }
-        string = validateInput(string);
-        int bufferSize = Math.max(MIN_BUFFER_SIZE, Math.min(DEFAULT_BUFFER_SIZE, string.length()));
+        parse(string, 0, string.length());
+    }
+
+    /**
+     * Parses the given range of the given string. Characters are copied straight from the string
+     * into the input buffer, which is kept for the next parse if it is large enough.
+     */
+    void parse(String string, int start, int end)
+    {
+        int bufferSize = Math.max(MIN_BUFFER_SIZE, Math.min(config.getBufferSize(), end - start));
+        if (buffer == null || buffer.length < bufferSize)
+        {
+            buffer = new char[bufferSize];
+        }
+        reader = null;
+        this.string = string;
+        stringPosition = start;
+        stringEnd = end;
+        bytes = null;
+        bufferOffset = origin != null ? origin.offset : 0;
+        index = 0;
+        fill = 0;
         try
         {
-            parse(new StringReader(string), bufferSize);
+            readAll();
         }
         catch (IOException exception)
         {
-            // StringReader does not throw IOException
+            // strings do not throw IOException
             throw new RuntimeException(exception);
         }
+        finally
+        {
+            this.string = null;
+        }
     }
 
     /**
      * Reads the entire input from the given reader and parses it as TEXT. The input must contain a
      * valid TEXT value, optionally padded with whitespace.
      * <p>
-     * Characters are read in chunks into a default-sized input buffer. Hence, wrapping a reader in an
-     * additional <code>BufferedReader</code> likely won't improve reading performance.
+     * Characters are read in chunks into an input buffer of the configured size. Hence, wrapping a
+     * reader in an additional <code>BufferedReader</code> likely won't improve reading performance.
      * </p>
      *
      * @param reader
@@ -98,180 +293,781 @@ public class Parser
      *           if the input is not valid TEXT
      */
     public void parse(Reader reader) throws IOException {
-        parse(reader, DEFAULT_BUFFER_SIZE);
+        parse(reader, config.getBufferSize());
+    }
+
+    /**
+     * Reads the entire input from the given reader and parses it as TEXT. The input must contain a
+     * valid TEXT value, optionally padded with whitespace.
+     * <p>
+     * Characters are read in chunks into an input buffer of the given size. Hence, wrapping a reader
+     * in an additional <code>BufferedReader</code> likely won't improve reading performance.
+     * </p>
+     *
+     * @param reader
+     *          the reader to read the input from
+     * @param buffersize
+     *          the size of the input buffer in chars
+     * @throws IOException
+     *           if an I/O error occurs in the reader
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public void parse(Reader reader, int buffersize) throws IOException
+    {
+        if (reader == null)
+        {
+            throw new NullPointerException("reader is null");
+        }
+        if (buffersize <= 0)
+        {
+            throw new IllegalArgumentException("buffersize is zero or negative");
+        }
+        open(reader, buffersize);
+        readAll();
+    }
+
+    /**
+     * Parses the remaining bytes of the given buffer as TEXT. The input must contain a valid TEXT
+     * value, optionally padded with whitespace.
+     * <p>
+     * The bytes are scanned directly as ASCII, without decoding them into characters first. Labels
+     * are reported to the handler as offsets into the given buffer through
+     * {@link ShapesHandler#endSquareLabel(Object, ByteBuffer, int, int)} and
+     * {@link ShapesHandler#endCircleLabel(Object, ByteBuffer, int, int)}. The position of the buffer
+     * is not changed.
+     * </p>
+     *
+     * @param input
+     *          the buffer to read the input from
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public void parse(ByteBuffer input)
+    {
+        if (input == null)
+        {
+            throw new NullPointerException("input is null");
+        }
+        open(input);
+        try
+        {
+            readAll();
+        }
+        catch (IOException exception)
+        {
+            // byte buffers do not throw IOException
+            throw new RuntimeException(exception);
+        }
+        finally
+        {
+            bytes = null;
+        }
+    }
+
+    /**
+     * Parses the file at the given path as TEXT. The input must contain a valid TEXT value,
+     * optionally padded with whitespace.
+     * <p>
+     * The file is memory-mapped in windows of up to 1 GiB and scanned as bytes, the same way as
+     * {@link #parse(ByteBuffer)}. Labels are reported to the handler as offsets into the current
+     * window. The rare label that straddles two windows is reported as a <code>String</code>.
+     * Locations are reported as <code>int</code> offsets, so they are only exact for the first 2 GiB
+     * of a file.
+     * </p>
+     *
+     * @param path
+     *          the file to parse
+     * @throws IOException
+     *           if the file cannot be opened or mapped
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public void parse(Path path) throws IOException
+    {
+        if (path == null)
+        {
+            throw new NullPointerException("path is null");
+        }
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            reader = null;
+            channel = fileChannel;
+            channelPosition = 0;
+            bytes = ByteBuffer.allocate(0);
+            bufferOffset = 0;
+            index = 0;
+            fill = 0;
+            readAll();
+        }
+        finally
+        {
+            channel = null;
+            bytes = null;
+        }
+    }
+
+    /**
+     * Checks whether the given string is valid TEXT, without reporting anything to the handler. All
+     * grammar rules are checked during the scan, including that squares only contain squares, and
+     * nothing is allocated per shape: labels are checked in the input buffer but not captured.
+     *
+     * @param string
+     *          the input string
+     * @throws ParseException
+     *           at the location of the first violation, if the input is not valid TEXT
+     */
+    public void validate(String string)
+    {
+        if (string == null)
+        {
+            throw new NullPointerException("string is null");
+        }
+        ShapesHandler<Object, Object> saved = startValidation();
+        try
+        {
+            parse(string, 0, string.length());
+        }
+        finally
+        {
+            endValidation(saved);
+        }
+    }
+
+    /**
+     * Checks whether the input of the given reader is valid TEXT, see {@link #validate(String)}.
+     *
+     * @param reader
+     *          the reader to read the input from
+     * @throws IOException
+     *           if an I/O error occurs in the reader
+     * @throws ParseException
+     *           at the location of the first violation, if the input is not valid TEXT
+     */
+    public void validate(Reader reader) throws IOException
+    {
+        ShapesHandler<Object, Object> saved = startValidation();
+        try
+        {
+            parse(reader);
+        }
+        finally
+        {
+            endValidation(saved);
+        }
+    }
+
+    /**
+     * Checks whether the remaining bytes of the given buffer are valid TEXT, see
+     * {@link #validate(String)}. The position of the buffer is not changed.
+     *
+     * @param input
+     *          the buffer to read the input from
+     * @throws ParseException
+     *           at the location of the first violation, if the input is not valid TEXT
+     */
+    public void validate(ByteBuffer input)
+    {
+        ShapesHandler<Object, Object> saved = startValidation();
+        try
+        {
+            parse(input);
+        }
+        finally
+        {
+            endValidation(saved);
+        }
+    }
+
+    /**
+     * Checks whether the file at the given path is valid TEXT, see {@link #validate(String)} and
+     * {@link #parse(Path)}.
+     *
+     * @param path
+     *          the file to check
+     * @throws IOException
+     *           if the file cannot be opened or mapped
+     * @throws ParseException
+     *           at the location of the first violation, if the input is not valid TEXT
+     */
+    public void validate(Path path) throws IOException
+    {
+        ShapesHandler<Object, Object> saved = startValidation();
+        try
+        {
+            parse(path);
+        }
+        finally
+        {
+            endValidation(saved);
+        }
+    }
+
+    private ShapesHandler<Object, Object> startValidation()
+    {
+        ShapesHandler<Object, Object> saved = handler;
+        handler = VALIDATOR;
+        validating = true;
+        return saved;
+    }
+
+    private void endValidation(ShapesHandler<Object, Object> saved)
+    {
+        handler = saved;
+        validating = false;
+    }
+
+    /**
+     * Sets the location of the first input character of the next parse, for parsing a section of a
+     * larger document with locations relative to that document.
+     */
+    void setOrigin(Location origin)
+    {
+        this.origin = origin;
+    }
+
+    /**
+     * Prepares this parser and its handler for the next input. References to the previous input and
+     * to the handler objects of unfinished shapes are dropped, the parse listener is detached, the
+     * maximum nesting level is restored from the {@link ParserConfig}, and
+     * {@link ShapesHandler#reset()} is called, but the input buffer and stacks are kept. A parser can
+     * parse again without a reset; a reset is for releasing the previous input and results, e.g.
+     * before pooling the parser.
+     */
+    public void reset()
+    {
+        listener = null;
+        maxNestingLevel = config.getMaxNestingLevel();
+        reader = null;
+        string = null;
+        bytes = null;
+        channel = null;
+        origin = null;
+        feeding = false;
+        Arrays.fill(objects, null);
+        Arrays.fill(labels, null);
+        nestingLevel = 0;
+        captureStart = -1;
+        if (captureBuffer != null && captureBuffer.capacity() > MAX_RETAINED_LABEL_CHARS)
+        {
+            captureBuffer = null;
+        }
+        if (labelChars.length > MAX_RETAINED_LABEL_CHARS)
+        {
+            labelChars = new char[INITIAL_STACK_SIZE * 8];
+        }
+        handler.reset();
+    }
+
+    /**
+     * Sets up the given reader as the input of the next parse, without reading from it yet.
+     */
+    void open(Reader reader, int buffersize)
+    {
+        this.reader = reader;
+        if (buffer == null || buffer.length != buffersize)
+        {
+            buffer = new char[buffersize];
+        }
+        string = null;
+        bytes = null;
+        bufferOffset = origin != null ? origin.offset : 0;
+        index = 0;
+        fill = 0;
+    }
+
+    /**
+     * Sets up the remaining bytes of the given buffer as the input of the next parse.
+     */
+    void open(ByteBuffer input)
+    {
+        reader = null;
+        bytes = input;
+        bufferOffset = (origin != null ? origin.offset : 0) - input.position();
+        index = input.position();
+        fill = input.limit();
+    }
+
+    private void readAll() throws IOException
+    {
+        try
+        {
+            begin();
+            while (step())
+            {
+            }
+        }
+        catch (ParseException exception)
+        {
+            if (listener != null)
+            {
+                listener.errorFound(exception);
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Resets the parser state and reads up to the first shape of the input set up by
+     * {@link #open(Reader, int)} or {@link #open(ByteBuffer)}.
+     */
+    void begin() throws IOException
+    {
+        if (origin != null)
+        {
+            line = origin.line;
+            lineOffset = origin.offset - origin.column + 1;
+            origin = null;
+        }
+        else
+        {
+            line = 1;
+            lineOffset = 0;
+        }
+        current = 0;
+        captureStart = -1;
+        Arrays.fill(objects, 0, nestingLevel, null);
+        Arrays.fill(labels, 0, nestingLevel, null);
+        nestingLevel = 0;
+        childLabels = handler.isChildLabelUsed();
+        numberLabels = NUMBER_LABELS.get(handler.getClass());
+        handler.startParse();
+        skipDepth = 0;
+        skipping = 0;
+        if (captureBuffer != null)
+        {
+            captureBuffer.setLength(0);
+        }
+        read();
+        skipWhiteSpace();
+        if (isEndOfText())
+        {
+            throw error("Error: Invalid Syntax: No shapes data");
+        }
+    }
+
+    /**
+     * Reads the next step of the input: either opens a shape and reads its label, or closes the
+     * innermost open shape. Returns <code>false</code> at the end of the input. Open shapes are kept
+     * on an explicit stack instead of the call stack, so the cost per shape does not depend on the
+     * nesting depth.
+     */
+    boolean step() throws IOException
+    {
+        int top = nestingLevel - 1;
+        if (top < 0)
+        {
+            if (isEndOfText())
+            {
+                return false;
+            }
+            if (skipValue())
+            {
+                skipWhiteSpace();
+            }
+            else
+            {
+                readValue();
+            }
+            return true;
+        }
+        skipWhiteSpace();
+        if (readChar(closers[top]))
+        {
+            closeValue();
+            if (top == 0)
+            {
+                handler.fold();
+                skipWhiteSpace();
+            }
+        }
+        else if (current == '(' && closers[top] == ']')
+        {
+            throw error("Error: Invalid Syntax: Squares Should only contain other squares");
+        }
+        else if (!skipValue())
+        {
+            if (closers[top] == ']')
+            {
+                handler.startSquareChild(objects[top], label(top));
+            }
+            else
+            {
+                handler.startCircleChild(objects[top], label(top));
+            }
+            readValue();
+        }
+        return true;
+    }
+
+    private void readValue() throws IOException
+    {
+        switch (current)
+        {
+            case '[':
+                openSquare();
+                break;
+            case '(':
+                openCircle();
+                break;
+            default:
+                throw expected("value");
+        }
+    }
+
+    private void openSquare() throws IOException
+    {
+        if (listener != null)
+        {
+            listener.squareFound(getLocation());
+        }
+        Object object = handler.startSquare();
+        read();
+        push(']', object);
+        skipWhiteSpace();
+        handler.startSquareLabel(object);
+        boolean numeric = readSquareLabel();
+        if (validating)
+        {
+            return;
+        }
+        int top = nestingLevel - 1;
+        boolean offsets = endLabel(top);
+        if (numeric && numberLabels)
+        {
+            handler.endSquareLabel(object, labelNumber);
+        }
+        else if (offsets)
+        {
+            handler.endSquareLabel(object, bytes, labelStarts[top], labelLengths[top]);
+        }
+        else
+        {
+            handler.endSquareLabel(object, labelView(top));
+        }
+        if (handler.skipSquareChildren(object) && !skipChildren())
+        {
+            skipping = SKIPPING_CHILDREN;
+        }
+    }
+
+    private void openCircle() throws IOException
+    {
+        if (listener != null)
+        {
+            listener.circleFound(getLocation());
+        }
+        Object object = handler.startCircle();
+        read();
+        push(')', object);
+        skipWhiteSpace();
+        handler.startCircleLabel(object);
+        readLabel(UPPER, "Error: Invalid Syntax: Invalid Circle Label Found");
+        if (validating)
+        {
+            return;
+        }
+        int top = nestingLevel - 1;
+        if (endLabel(top))
+        {
+            handler.endCircleLabel(object, bytes, labelStarts[top], labelLengths[top]);
+        }
+        else
+        {
+            handler.endCircleLabel(object, labelView(top));
+        }
+        if (handler.skipCircleChildren(object) && !skipChildren())
+        {
+            skipping = SKIPPING_CHILDREN;
+        }
     }
 
     /**
-     * Reads the entire input from the given reader and parses it as TEXT. The input must contain a
-     * valid TEXT value, optionally padded with whitespace.
-     * <p>
-     * Characters are read in chunks into an input buffer of the given size. Hence, wrapping a reader
-     * in an additional <code>BufferedReader</code> likely won't improve reading performance.
-     * </p>
-     *
-     * @param reader
-     *          the reader to read the input from
-     * @param buffersize
-     *          the size of the input buffer in chars
-     * @throws IOException
-     *           if an I/O error occurs in the reader
-     * @throws ParseException
-     *           if the input is not valid TEXT
+     * Skips the shape at the current character if the handler asks for it, see
+     * {@link ShapesHandler#skipSquare()}. Returns <code>false</code> if the shape is to be read.
      */
-    public void parse(Reader reader, int buffersize) throws IOException
+    private boolean skipValue() throws IOException
     {
-        if (reader == null)
+        char closer;
+        if (current == '[' && handler.skipSquare())
         {
-            throw new NullPointerException("reader is null");
+            closer = ']';
         }
-        if (buffersize <= 0)
+        else if (current == '(' && handler.skipCircle())
         {
-            throw new IllegalArgumentException("buffersize is zero or negative");
+            closer = ')';
+        }
+        else
+        {
+            return false;
         }
-        this.reader = reader;
-        buffer = new char[buffersize];
-        bufferOffset = 0;
-        index = 0;
-        fill = 0;
-        line = 1;
-        lineOffset = 0;
-        current = 0;
-        captureStart = -1;
         read();
-        skipWhiteSpace();
-        while(!isEndOfText())
+        if (skipChildren())
         {
-            readValue();
-            handler.fold();
+            endSkip(closer);
         }
-        skipWhiteSpace();
-        if (!isEndOfText())
+        else
         {
-            throw error("Unexpected character");
+            skipping = closer;
         }
+        return true;
     }
 
-    private String validateInput(String process)
+    private void endSkip(char closer) throws IOException
     {
-        process = process.trim();
-        if(process.length() <= 0)
+        if (!readChar(closer))
         {
-            System.err.println("Error: Invalid Syntax: No shapes data");
-            throw new ParseException("Error: Invalid Syntax: No shapes data", getLocation());
+            throw expected("'" + closer + "'");
         }
-        if(!isValidChars(process))
+    }
+
+    /**
+     * Fast-forwards to the closing bracket of the innermost open shape, without capturing labels or
+     * calling the handler. Only brackets are looked at, so the skipped text is only checked for
+     * balance. The closing bracket itself is not consumed. Returns <code>false</code> if the fed
+     * input runs out first, in which case the next call continues where this one stopped.
+     */
+    boolean skipChildren() throws IOException
+    {
+        int depth = skipDepth;
+        while (true)
         {
-            System.err.println("Error: Invalid Syntax: Invalid Characters Found");
-            throw new ParseException("Error: Invalid Syntax: Invalid Characters Found", getLocation());
+            switch (current)
+            {
+                case '[':
+                case '(':
+                    depth++;
+                    break;
+                case ']':
+                case ')':
+                    if (depth == 0)
+                    {
+                        skipDepth = 0;
+                        return true;
+                    }
+                    depth--;
+                    break;
+                case -1:
+                    throw error("Unexpected end of input");
+                case NEED_MORE:
+                    skipDepth = depth;
+                    return false;
+                default:
+                    break;
+            }
+            read();
         }
-        long countCircleChars = process.chars().filter(ch -> ch == '(').count() + process.chars().filter(ch -> ch == ')').count();
-        long countSquareChars = process.chars().filter(ch -> ch == '[').count() + process.chars().filter(ch -> ch == ']').count();
-        if(countCircleChars != 0 && (countCircleChars % 2 != 0))
+    }
+
+    private void closeValue()
+    {
+        int top = --nestingLevel;
+        Object object = objects[top];
+        objects[top] = null;
+        labels[top] = null;
+        if (closers[top] == ']')
         {
-            System.err.println("Error: Invalid Syntax: All Circles Should be closed. Mismatching ( and )");
-            throw new ParseException("Error: Invalid Syntax: All Circles Should be closed. Mismatching ( and )", getLocation());
+            handler.endSquare(object);
         }
-        if(countSquareChars != 0 && (countSquareChars % 2 != 0))
+        else
         {
-            System.err.println("Error: Invalid Syntax: All Squares Should be closed. Mismatching [ and ]");
-            throw new ParseException("Error: Invalid Syntax: All Squares Should be closed. Mismatching [ and ]", getLocation());
+            handler.endCircle(object);
         }
-        if(countCircleChars == 0 && countSquareChars == 0)
+        if (top > 0)
         {
-            System.err.println("Error: Invalid Syntax: No Shapes Found");
-            throw new ParseException("Error: Invalid Syntax: No Shapes Found", getLocation());
+            if (closers[top - 1] == ']')
+            {
+                handler.endSquareChild(objects[top - 1], label(top - 1));
+            }
+            else
+            {
+                handler.endCircleChild(objects[top - 1], label(top - 1));
+            }
         }
-        return(process);
     }
 
-    private void readValue() throws IOException {
-        switch (current)
+    private void push(char closer, Object object)
+    {
+        if (nestingLevel == maxNestingLevel)
         {
-            case '[':
-                readSquare();
-                break;
-            case '(':
-                readCircle();
-                break;
-            default:
-                throw expected("value");
+            throw error("Nesting too deep");
         }
+        if (nestingLevel == closers.length)
+        {
+            int capacity = (int)Math.min((long)closers.length * 2, maxNestingLevel);
+            closers = Arrays.copyOf(closers, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+            labelStarts = Arrays.copyOf(labelStarts, capacity);
+            labelLengths = Arrays.copyOf(labelLengths, capacity);
+        }
+        closers[nestingLevel] = closer;
+        objects[nestingLevel] = object;
+        labelLengths[nestingLevel] = 0;
+        nestingLevel++;
     }
 
-    private void readSquare() throws IOException
+    /**
+     * Captures a square label like {@link #readLabel(byte, String)}, and accumulates its digits into
+     * {@link #labelNumber} on the way. Returns <code>false</code> if the label cannot be reported as a
+     * number without changing its text, i.e. if it has leading zeros or does not fit into a
+     * <code>long</code>.
+     */
+    private boolean readSquareLabel() throws IOException
     {
-        Object object = handler.startSquare();
-        read();
-        if (++nestingLevel > MAX_NESTING_LEVEL) {
-            throw error("Nesting too deep");
+        String message = "Error: Invalid Syntax: Invalid Square Label Found";
+        if (charClass(current) != DIGIT)
+        {
+            throw error(message);
         }
-        skipWhiteSpace();
-        handler.startSquareLabel(object);
-        String label = readLabel();
-        if(!isValidSquareLabel(label))
+        boolean leadingZero = current == '0';
+        boolean numeric = true;
+        long number = current - '0';
+        if (!validating)
         {
-            System.err.println("Error: Invalid Syntax: Invalid Square Label Found");
-            throw new ParseException("Error: Invalid Syntax: Invalid Square Label Found", getLocation());
+            startCapture();
         }
-        handler.endSquareLabel(object, label);
-        skipWhiteSpace();
-
-        while (!readChar(']'))
+        read();
+        int type;
+        while (((type = charClass(current)) & LABEL) != 0)
         {
-            handler.startSquareChild(object, label);
-            readValue();
-            handler.endSquareChild(object, label);
-            skipWhiteSpace();
+            if (type != DIGIT)
+            {
+                throw error(message);
+            }
+            if (numeric)
+            {
+                int digit = current - '0';
+                if (leadingZero || number > (Long.MAX_VALUE - digit) / 10)
+                {
+                    numeric = false;
+                }
+                else
+                {
+                    number = number * 10 + digit;
+                }
+            }
+            read();
         }
-        nestingLevel--;
-        handler.endSquare(object);
-        System.out.println("Square Found");
+        labelNumber = number;
+        return numeric;
     }
 
-    private void readCircle() throws IOException
+    /**
+     * Captures the label starting at the current character. Every character of the label run is
+     * checked against the given alphabet while it is captured, so the label is never scanned twice.
+     */
+    private void readLabel(byte alphabet, String message) throws IOException
     {
-        Object object = handler.startCircle();
+        if ((charClass(current) & alphabet) == 0)
+        {
+            throw error(message);
+        }
+        if (!validating)
+        {
+            startCapture();
+        }
         read();
-        if (++nestingLevel > MAX_NESTING_LEVEL) {
-            throw error("Nesting too deep");
+        int type;
+        while (((type = charClass(current)) & LABEL) != 0)
+        {
+            if ((type & alphabet) == 0)
+            {
+                throw error(message);
+            }
+            read();
         }
-        skipWhiteSpace();
-        handler.startCircleLabel(object);
-        String label = readLabel();
-        if(!isValidCircleLabel(label))
+    }
+
+    /**
+     * Completes the label captured for the given stack level. Labels read from bytes are kept as
+     * offsets into the current byte buffer, in which case this method returns <code>true</code>.
+     * Labels read from characters are copied into the label stack, so that they survive buffer
+     * refills without creating a <code>String</code>.
+     */
+    private boolean endLabel(int level)
+    {
+        if (bytes != null)
         {
-            System.err.println("Error: Invalid Syntax: Invalid Circle Label Found");
-            throw new ParseException("Error: Invalid Syntax: Invalid Circle Label Found", getLocation());
+            if (captureBuffer.length() == 0)
+            {
+                labels[level] = null;
+                labelStarts[level] = captureStart;
+                labelLengths[level] = index - 1 - captureStart;
+                captureStart = -1;
+                return true;
+            }
+            // straddles two map windows
+            labels[level] = endCapture();
+            return false;
         }
-        handler.endCircleLabel(object, label);
-        skipWhiteSpace();
-        while (!readChar(')'))
+        int start = level == 0 ? 0 : labelStarts[level - 1] + labelLengths[level - 1];
+        int captured = captureBuffer.length();
+        int end = index - 1;
+        int length = captured + end - captureStart;
+        if (start + length > labelChars.length)
         {
-            handler.startCircleChild(object, label);
-            readValue();
-            handler.endCircleChild(object, label);
-            skipWhiteSpace();
+            labelChars = Arrays.copyOf(labelChars, Math.max(labelChars.length * 2, start + length));
         }
-        nestingLevel--;
-        handler.endCircle(object);
-        System.out.println("Circle Found");
+        captureBuffer.getChars(0, captured, labelChars, start);
+        System.arraycopy(buffer, captureStart, labelChars, start + captured, end - captureStart);
+        captureBuffer.setLength(0);
+        captureStart = -1;
+        labels[level] = null;
+        labelStarts[level] = start;
+        labelLengths[level] = length;
+        return false;
     }
 
-    private String readLabel() throws IOException
+    /**
+     * Returns a view of the label of the shape at the given stack level, which is only valid until the
+     * next label is read.
+     */
+    private CharSequence labelView(int level)
     {
-        return readStringInternal();
+        String label = labels[level];
+        if (label != null)
+        {
+            return label;
+        }
+        return labelView.reset(labelChars, labelStarts[level], labelLengths[level]);
     }
 
-    private String readStringInternal() throws IOException
+    CharSequence labelView(ByteBuffer source, int offset, int length)
     {
-        startCapture();
-        read();
-        while(((current >= 'a') && (current <= 'z')) || ((current >= 'A') && (current <= 'Z')) || ((current >= '0') && (current <= '9')))
+        return labelView.reset(source, offset, length);
+    }
+
+    /**
+     * Returns the label of the shape at the given stack level, materializing it on first use. Returns
+     * <code>null</code> if the handler does not use labels in its child callbacks.
+     */
+    private String label(int level)
+    {
+        String label = labels[level];
+        if (label == null && childLabels)
         {
-            read();
+            if (bytes != null)
+            {
+                label = decodeAscii(bytes, labelStarts[level], labelLengths[level]);
+            }
+            else
+            {
+                label = new String(labelChars, labelStarts[level], labelLengths[level]);
+            }
+            labels[level] = label;
         }
-        String string = endCapture();
-        return string;
+        return label;
+    }
+
+    static String decodeAscii(ByteBuffer bytes, int offset, int length)
+    {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+        {
+            chars[i] = (char)(bytes.get(offset + i) & 0xff);
+        }
+        return new String(chars);
     }
 
     private String endCapture()
@@ -281,11 +1077,22 @@ public class Parser
         captureStart = -1;
         if (captureBuffer.length() > 0)
         {
-            captureBuffer.append(buffer, start, end - start);
+            if (bytes != null)
+            {
+                appendBytes(start, end);
+            }
+            else
+            {
+                captureBuffer.append(buffer, start, end - start);
+            }
             String captured = captureBuffer.toString();
             captureBuffer.setLength(0);
             return captured;
         }
+        if (bytes != null)
+        {
+            return decodeAscii(bytes, start, end - start);
+        }
         return new String(buffer, start, end - start);
     }
 
@@ -325,22 +1132,31 @@ public class Parser
 
     private boolean isWhiteSpace()
     {
-        return current == ' ' || current == '\t' || current == '\n' || current == '\r';
+        return charClass(current) == WHITESPACE;
+    }
+
+    private static int charClass(int ch)
+    {
+        return (ch & ~0x7f) == 0 ? CHAR_CLASS[ch] : 0;
     }
 
     private void read() throws IOException
     {
         if (index == fill)
         {
-            if (captureStart != -1)
+            if (feeding)
             {
-                captureBuffer.append(buffer, captureStart, fill - captureStart);
-                captureStart = 0;
+                if (current == '\n')
+                {
+                    line++;
+                    lineOffset = bufferOffset + index;
+                }
+                // like at the end of the input, locations point behind the last character
+                current = NEED_MORE;
+                index++;
+                return;
             }
-            bufferOffset += fill;
-            fill = reader.read(buffer, 0, buffer.length);
-            index = 0;
-            if (fill == -1)
+            if (bytes != null ? !mapNextWindow() : !readNextBuffer())
             {
                 current = -1;
                 index++;
@@ -352,82 +1168,277 @@ public class Parser
             line++;
             lineOffset = bufferOffset + index;
         }
-        current = buffer[index++];
+        current = bytes != null ? bytes.get(index++) & 0xff : buffer[index++];
     }
 
-    Location getLocation()
+    private boolean readNextBuffer() throws IOException
     {
-        int offset = bufferOffset + index - 1;
-        int column = offset - lineOffset + 1;
-        return new Location(offset, line, column);
+        if (captureStart != -1)
+        {
+            captureBuffer.append(buffer, captureStart, fill - captureStart);
+            captureStart = 0;
+        }
+        bufferOffset += fill;
+        if (string != null)
+        {
+            fill = Math.min(buffer.length, stringEnd - stringPosition);
+            string.getChars(stringPosition, stringPosition + fill, buffer, 0);
+            stringPosition += fill;
+            if (fill == 0)
+            {
+                fill = -1;
+            }
+        }
+        else
+        {
+            fill = reader.read(buffer, 0, buffer.length);
+        }
+        index = 0;
+        return fill != -1;
     }
 
-    private ParseException expected(String expected)
+    private boolean mapNextWindow() throws IOException
     {
-        if (isEndOfText())
+        if (channel == null || channelPosition == channel.size())
         {
-            return error("Unexpected end of input");
+            return false;
         }
-        return error("Expected " + expected);
+        // labels kept as offsets would not survive the window change
+        for (int level = 0; level < nestingLevel; level++)
+        {
+            label(level);
+        }
+        if (captureStart != -1)
+        {
+            appendBytes(captureStart, fill);
+            captureStart = 0;
+        }
+        long size = Math.min(MAP_WINDOW_SIZE, channel.size() - channelPosition);
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, channelPosition, size);
+        channelPosition += size;
+        bufferOffset += fill;
+        index = 0;
+        fill = (int)size;
+        return true;
     }
 
-    private ParseException error(String message)
+    private void appendBytes(int start, int end)
     {
-        return new ParseException(message, getLocation());
+        for (int i = start; i < end; i++)
+        {
+            captureBuffer.append((char)(bytes.get(i) & 0xff));
+        }
     }
 
-    private boolean isEndOfText()
+    /**
+     * Starts parsing input that is fed in chunks, see {@link PushParser}.
+     */
+    void openFeed()
     {
-        return current == -1;
+        reader = null;
+        channel = null;
+        bytes = ByteBuffer.allocate(config.getBufferSize());
+        bufferOffset = 0;
+        index = 0;
+        fill = 0;
+        lastBracket = -1;
+        feeding = true;
+        feedEmpty = true;
+        try
+        {
+            begin();
+        }
+        catch (IOException exception)
+        {
+            // fed input does not throw IOException
+            throw new RuntimeException(exception);
+        }
     }
 
-    private static boolean isValidChars(String s)
+    /**
+     * Appends the remaining bytes of the given chunk to the input and parses as far as the input
+     * allows.
+     */
+    void feed(ByteBuffer chunk)
     {
-        boolean valid = false;
-        char[] a = s.toCharArray();
-        for (char c: a)
+        int length = chunk.remaining();
+        if (fill + length > bytes.capacity())
         {
-            valid = ((c >= 'a') && (c <= 'z')) ||
-                    ((c >= 'A') && (c <= 'Z')) ||
-                    ((c >= '0') && (c <= '9')) ||
-                    ((c == '(')) || ((c == ')')) ||
-                    ((c == '[')) || ((c == ']'));
-            if (!valid)
+            compact(length);
+        }
+        ByteBuffer target = bytes.duplicate();
+        target.position(fill);
+        target.put(chunk);
+        for (int i = fill + length - 1; i >= fill; i--)
+        {
+            if (charClass(bytes.get(i)) == BRACKET)
             {
+                lastBracket = i;
                 break;
             }
         }
-        return valid;
+        fill += length;
+        pump();
     }
 
-    private static boolean isValidCircleLabel(String s)
+    /**
+     * Parses the rest of the fed input, which is now complete.
+     */
+    void endFeed()
     {
-        boolean valid = false;
-        char[] a = s.toCharArray();
-        for (char c: a)
+        feeding = false;
+        try
         {
-            valid = ((c >= 'A') && (c <= 'Z'));
-            if (!valid)
-            {
-                break;
-            }
+            pump();
+        }
+        finally
+        {
+            bytes = null;
+        }
+    }
+
+    /**
+     * Drops the input before the current character to make room for the given number of bytes.
+     */
+    private void compact(int length)
+    {
+        int keep = index - 1;
+        // labels kept as offsets would not survive the move
+        for (int level = 0; level < nestingLevel; level++)
+        {
+            label(level);
+        }
+        bytes.limit(fill);
+        bytes.position(keep);
+        if (fill - keep + length > bytes.capacity())
+        {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, fill - keep + length));
+            grown.put(bytes);
+            bytes = grown;
+        }
+        else
+        {
+            bytes.compact();
         }
-        return valid;
+        bytes.clear();
+        bufferOffset += keep;
+        index -= keep;
+        fill -= keep;
+        lastBracket -= keep;
     }
 
-    private static boolean isValidSquareLabel(String s)
+    /**
+     * Runs as many steps as the fed input allows. A step is only started once it can be completed
+     * with the input at hand: the label of a new shape must be followed by a bracket, and whitespace
+     * must be followed by anything. Skipped shapes are fast-forwarded across chunks.
+     */
+    private void pump()
     {
-        boolean valid = false;
-        char[] a = s.toCharArray();
-        for (char c: a)
+        try
         {
-            valid = ((c >= '0') && (c <= '9'));
-            if (!valid)
+            while (true)
             {
-                break;
+                if (current == NEED_MORE)
+                {
+                    index--;
+                    current = 0;
+                    read();
+                    if (current == NEED_MORE)
+                    {
+                        return;
+                    }
+                }
+                if (skipping != 0)
+                {
+                    if (!skipChildren())
+                    {
+                        continue;
+                    }
+                    char closer = skipping;
+                    skipping = 0;
+                    if (closer != SKIPPING_CHILDREN)
+                    {
+                        endSkip(closer);
+                    }
+                    continue;
+                }
+                skipWhiteSpace();
+                if (current == NEED_MORE)
+                {
+                    continue;
+                }
+                if (isEndOfText() && nestingLevel == 0)
+                {
+                    if (feedEmpty)
+                    {
+                        throw error("Error: Invalid Syntax: No shapes data");
+                    }
+                    return;
+                }
+                if (feeding && (current == '[' || current == '(') && lastBracket < index)
+                {
+                    return;
+                }
+                feedEmpty = false;
+                step();
+            }
+        }
+        catch (IOException exception)
+        {
+            // fed input does not throw IOException
+            throw new RuntimeException(exception);
+        }
+        catch (ParseException exception)
+        {
+            if (listener != null)
+            {
+                listener.errorFound(exception);
             }
+            throw exception;
+        }
+    }
+
+    Location getLocation()
+    {
+        return new Location(getOffset(), line, getColumn());
+    }
+
+    int getOffset()
+    {
+        return bufferOffset + index - 1;
+    }
+
+    int getLine()
+    {
+        return line;
+    }
+
+    int getColumn()
+    {
+        return getOffset() - lineOffset + 1;
+    }
+
+    private ParseException expected(String expected)
+    {
+        if (isEndOfText())
+        {
+            return error("Unexpected end of input");
+        }
+        if (charClass(current) == 0)
+        {
+            return error("Error: Invalid Syntax: Invalid Characters Found");
         }
-        return valid;
+        return error("Expected " + expected);
+    }
+
+    private ParseException error(String message)
+    {
+        return new ParseException(message, getLocation());
+    }
+
+    private boolean isEndOfText()
+    {
+        return current == -1;
     }
 
     public static void main(String[] args )
@@ -458,7 +1469,28 @@ public class Parser
         }
 
         ShapesHandlerImpl handler = new ShapesHandlerImpl();
-        new Parser(handler).parse(process);
+        Parser parser = new Parser(handler);
+        parser.setParseListener(new ParseListener()
+        {
+            @Override
+            public void squareFound(Location location)
+            {
+                System.out.println("Square Found at " + location);
+            }
+
+            @Override
+            public void circleFound(Location location)
+            {
+                System.out.println("Circle Found at " + location);
+            }
+
+            @Override
+            public void errorFound(ParseException exception)
+            {
+                System.err.println(exception.getMessage());
+            }
+        });
+        parser.parse(process);
         ShapesContainer holder = new ShapesContainer(handler.getParent());
         holder.setLabel("Container");
 
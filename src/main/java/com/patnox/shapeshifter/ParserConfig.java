@@ -0,0 +1,89 @@
+package com.patnox.shapeshifter;
+
+/**
+ * The settings of a {@link Parser}. A configuration is immutable, so one instance can be shared by
+ * any number of parsers and threads. The <code>with*</code> methods return a modified copy. Example:
+ *
+ * <pre>
+ * ParserConfig config = ParserConfig.DEFAULT.withMaxNestingLevel(64).withBufferSize(256);
+ * Parser parser = new Parser(handler, config);
+ * </pre>
+ *
+ * @author patnox
+ */
+public final class ParserConfig
+{
+    /**
+     * The default configuration: a maximum nesting level of 1000 and an input buffer of 1024
+     * characters.
+     */
+    public static final ParserConfig DEFAULT = new ParserConfig(1000, 1024);
+
+    private final int maxNestingLevel;
+    private final int bufferSize;
+
+    private ParserConfig(int maxNestingLevel, int bufferSize)
+    {
+        this.maxNestingLevel = maxNestingLevel;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the maximum number of nested shapes, see {@link Parser#setMaxNestingLevel(int)}.
+     *
+     * @return the maximum nesting level
+     */
+    public int getMaxNestingLevel()
+    {
+        return maxNestingLevel;
+    }
+
+    /**
+     * Returns the size of the input buffer in chars used to read from a <code>Reader</code> or a
+     * <code>String</code>.
+     *
+     * @return the buffer size
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a copy of this configuration with the given maximum nesting level.
+     *
+     * @param maxNestingLevel
+     *          the maximum nesting level, must be positive
+     * @return the modified configuration
+     */
+    public ParserConfig withMaxNestingLevel(int maxNestingLevel)
+    {
+        if (maxNestingLevel <= 0)
+        {
+            throw new IllegalArgumentException("maxNestingLevel is zero or negative");
+        }
+        return new ParserConfig(maxNestingLevel, bufferSize);
+    }
+
+    /**
+     * Returns a copy of this configuration with the given input buffer size.
+     *
+     * @param bufferSize
+     *          the size of the input buffer in chars, must be positive
+     * @return the modified configuration
+     */
+    public ParserConfig withBufferSize(int bufferSize)
+    {
+        if (bufferSize <= 0)
+        {
+            throw new IllegalArgumentException("bufferSize is zero or negative");
+        }
+        return new ParserConfig(maxNestingLevel, bufferSize);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ParserConfig[maxNestingLevel=" + maxNestingLevel + ", bufferSize=" + bufferSize + "]";
+    }
+}
@@ -0,0 +1,220 @@
+package com.patnox.shapeshifter;
+
+import java.util.ArrayDeque;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe pool of parsers, each bound to its own handler. A service that parses many small
+ * documents can take a parser from the pool for each document instead of creating a new parser and
+ * handler, so that input buffers and stacks are reused. Example:
+ *
+ * <pre>
+ * ParserPool&lt;ShapesHandlerImpl&gt; pool = new ParserPool&lt;&gt;(ShapesHandlerImpl::new);
+ * ShapesContainer shapes = pool.parse(text, handler -&gt; new ShapesContainer(handler.getParent()));
+ * </pre>
+ * <p>
+ * Parsers are returned to the pool with {@link Lease#close()}, which resets the parser and its
+ * handler, see {@link Parser#reset()}. Results must be taken from the handler before that; handlers
+ * that hold their results themselves, such as {@link ShapeArena}, are emptied by the reset. At most
+ * the given number of idle parsers are kept; further parsers are left to the garbage collector.
+ * </p>
+ *
+ * @param <H>
+ *          the type of the handlers
+ * @author patnox
+ */
+public class ParserPool<H extends ShapesHandler<?, ?>>
+{
+    private final Supplier<? extends H> handlerFactory;
+    private final ParserConfig config;
+    private final int maxIdle;
+    private final ArrayDeque<Pooled<H>> idle = new ArrayDeque<>();
+
+    /**
+     * Creates a pool with the default configuration that keeps up to two idle parsers per processor.
+     *
+     * @param handlerFactory
+     *          creates a new handler per parser, possibly from several threads at once
+     */
+    public ParserPool(Supplier<? extends H> handlerFactory)
+    {
+        this(handlerFactory, ParserConfig.DEFAULT, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool of parsers with the given configuration.
+     *
+     * @param handlerFactory
+     *          creates a new handler per parser, possibly from several threads at once
+     * @param config
+     *          the configuration of all parsers
+     * @param maxIdle
+     *          the maximum number of idle parsers to keep, must be &gt;= 0
+     */
+    public ParserPool(Supplier<? extends H> handlerFactory, ParserConfig config, int maxIdle)
+    {
+        if (handlerFactory == null)
+        {
+            throw new NullPointerException("handlerFactory is null");
+        }
+        if (config == null)
+        {
+            throw new NullPointerException("config is null");
+        }
+        if (maxIdle < 0)
+        {
+            throw new IllegalArgumentException("maxIdle is negative");
+        }
+        this.handlerFactory = handlerFactory;
+        this.config = config;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Takes an idle parser from the pool, or creates a new one if there is none. Every call returns a
+     * new lease, so closing a lease again has no effect on later borrowers of the same parser.
+     *
+     * @return a parser and its handler, to be closed after use
+     */
+    public Lease<H> acquire()
+    {
+        Pooled<H> pooled;
+        synchronized (idle)
+        {
+            pooled = idle.pollFirst();
+        }
+        if (pooled == null)
+        {
+            H handler = handlerFactory.get();
+            pooled = new Pooled<>(new Parser(handler, config), handler);
+        }
+        return new Lease<>(this, pooled);
+    }
+
+    /**
+     * Parses the given string with a pooled parser and returns what the given function takes from
+     * the handler.
+     *
+     * @param string
+     *          the input string, must be valid TEXT
+     * @param result
+     *          takes the result from the handler before it is reset
+     * @param <R>
+     *          the type of the result
+     * @return the result
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public <R> R parse(String string, Function<? super H, ? extends R> result)
+    {
+        try (Lease<H> lease = acquire())
+        {
+            lease.getParser().parse(string);
+            return result.apply(lease.getHandler());
+        }
+    }
+
+    /**
+     * Returns the number of idle parsers in the pool.
+     *
+     * @return the number of idle parsers
+     */
+    public int getIdleCount()
+    {
+        synchronized (idle)
+        {
+            return idle.size();
+        }
+    }
+
+    private void release(Pooled<H> pooled)
+    {
+        pooled.parser.reset();
+        synchronized (idle)
+        {
+            if (idle.size() < maxIdle)
+            {
+                idle.addFirst(pooled);
+            }
+        }
+    }
+
+    /**
+     * An idle parser and its handler.
+     */
+    private static final class Pooled<H>
+    {
+        final Parser parser;
+        final H handler;
+
+        Pooled(Parser parser, H handler)
+        {
+            this.parser = parser;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * A parser taken from a {@link ParserPool}, together with its handler. A lease must not be used
+     * after it has been closed.
+     *
+     * @param <H>
+     *          the type of the handler
+     */
+    public static final class Lease<H extends ShapesHandler<?, ?>> implements AutoCloseable
+    {
+        private final ParserPool<H> pool;
+        private final Pooled<H> pooled;
+        private boolean closed;
+
+        private Lease(ParserPool<H> pool, Pooled<H> pooled)
+        {
+            this.pool = pool;
+            this.pooled = pooled;
+        }
+
+        /**
+         * Returns the parser.
+         *
+         * @return the parser, bound to {@link #getHandler()}
+         */
+        public Parser getParser()
+        {
+            checkOpen();
+            return pooled.parser;
+        }
+
+        /**
+         * Returns the handler of the parser.
+         *
+         * @return the handler
+         */
+        public H getHandler()
+        {
+            checkOpen();
+            return pooled.handler;
+        }
+
+        /**
+         * Resets the parser and returns it to the pool. Further calls have no effect.
+         */
+        @Override
+        public void close()
+        {
+            if (!closed)
+            {
+                closed = true;
+                pool.release(pooled);
+            }
+        }
+
+        private void checkOpen()
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("lease is closed");
+            }
+        }
+    }
+}
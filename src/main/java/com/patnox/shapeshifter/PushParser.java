@@ -0,0 +1,122 @@
+package com.patnox.shapeshifter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A non-blocking parser for TEXT that arrives in chunks, e.g. from a socket in a selector loop.
+ * Instead of pulling input from a <code>Reader</code>, the caller pushes each chunk as it arrives
+ * with {@link #feed(ByteBuffer)} and signals the end of the input with {@link #end()}. Example:
+ *
+ * <pre>
+ * PushParser parser = new PushParser(handler);
+ * while (channel.read(buffer) != -1) {
+ *     buffer.flip();
+ *     parser.feed(buffer);
+ *     buffer.clear();
+ * }
+ * parser.end();
+ * </pre>
+ * <p>
+ * The parser runs the same scanner as {@link Parser#parse(ByteBuffer)} and reports the same
+ * callbacks to the handler, as soon as the fed input allows. A shape is reported once its label is
+ * complete. The nesting stack, a partial label and the line and column are kept across chunks, so
+ * chunks may end anywhere. Only the unparsed end of the input is buffered between chunks.
+ * </p>
+ * <p>
+ * After a {@link ParseException} the parser cannot be fed anymore. A parser is not thread-safe.
+ * </p>
+ *
+ * @author patnox
+ */
+public class PushParser
+{
+    private final Parser parser;
+    private boolean done;
+
+    /**
+     * Creates a new push parser with the given handler, see {@link Parser#Parser(ShapesHandler)}.
+     *
+     * @param handler
+     *          the handler to process parser events
+     */
+    public PushParser(ShapesHandler<?, ?> handler)
+    {
+        parser = new Parser(handler);
+        parser.openFeed();
+    }
+
+    /**
+     * Attaches a listener for diagnostic parser events, see
+     * {@link Parser#setParseListener(ParseListener)}.
+     *
+     * @param listener
+     *          the listener to notify, or <code>null</code> to detach the current listener
+     */
+    public void setParseListener(ParseListener listener)
+    {
+        parser.setParseListener(listener);
+    }
+
+    /**
+     * Sets the maximum nesting level, see {@link Parser#setMaxNestingLevel(int)}.
+     *
+     * @param maxNestingLevel
+     *          the maximum nesting level, must be positive
+     */
+    public void setMaxNestingLevel(int maxNestingLevel)
+    {
+        parser.setMaxNestingLevel(maxNestingLevel);
+    }
+
+    /**
+     * Parses the remaining bytes of the given chunk as far as possible. All remaining bytes are
+     * consumed, so the chunk can be reused as soon as this method returns.
+     *
+     * @param chunk
+     *          the next bytes of the input
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     * @throws IllegalStateException
+     *           if the input has already ended or was found invalid
+     */
+    public void feed(ByteBuffer chunk)
+    {
+        if (chunk == null)
+        {
+            throw new NullPointerException("chunk is null");
+        }
+        checkNotDone();
+        try
+        {
+            parser.feed(chunk);
+        }
+        catch (ParseException exception)
+        {
+            done = true;
+            throw exception;
+        }
+    }
+
+    /**
+     * Parses the rest of the input, which must now be complete.
+     *
+     * @throws ParseException
+     *           if the input is not valid TEXT, e.g. if shapes are left open
+     * @throws IllegalStateException
+     *           if the input has already ended or was found invalid
+     */
+    public void end()
+    {
+        checkNotDone();
+        done = true;
+        parser.endFeed();
+    }
+
+    private void checkNotDone()
+    {
+        if (done)
+        {
+            throw new IllegalStateException("input has ended");
+        }
+    }
+}
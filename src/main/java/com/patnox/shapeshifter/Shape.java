@@ -1,13 +1,23 @@
 package com.patnox.shapeshifter;
 
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /**
  * This is the shape object which is the base of all objects that can be shown on a graph
+ * <p>
+ * A finished tree can be frozen with {@link #freeze()}. A frozen shape cannot be modified: its
+ * children are kept in a list of exact size, leaves share one empty list, and all setters throw
+ * <code>IllegalStateException</code>. Frozen trees can be shared between threads without copying or
+ * locking, once they have been published safely.
+ * </p>
  * @author patnox
  */
 public class Shape
 {
+    private static final FrozenList NO_CHILDREN = new FrozenList(Collections.<Shape>emptyList());
+
     private String label = "";
     private ArrayList<Shape> children = new ArrayList<>();
 
@@ -16,11 +26,13 @@ public class Shape
     }
 
     public void setLabel(String label) {
+        checkNotFrozen();
         this.label = label;
     }
 
     public void addChild(Shape newShape)
     {
+        checkNotFrozen();
         children.add(newShape);
     }
 
@@ -29,9 +41,56 @@ public class Shape
     }
 
     public void setChildren(ArrayList<Shape> children) {
+        checkNotFrozen();
         this.children = children;
     }
 
+    /**
+     * Makes this shape and all its descendants immutable. Descendants that are frozen already are
+     * not visited again, so freezing a tree that shares subtrees is linear in its distinct shapes.
+     *
+     * @return this shape
+     */
+    public Shape freeze()
+    {
+        ArrayList<Shape> stack = new ArrayList<>();
+        stack.add(this);
+        while (!stack.isEmpty())
+        {
+            Shape shape = stack.remove(stack.size() - 1);
+            if (shape.isFrozen())
+            {
+                continue;
+            }
+            shape.materialize();
+            ArrayList<Shape> children = shape.children;
+            shape.children = children.isEmpty() ? NO_CHILDREN : new FrozenList(children);
+            stack.addAll(children);
+        }
+        return this;
+    }
+
+    /**
+     * Returns whether this shape has been frozen, see {@link #freeze()}.
+     *
+     * @return <code>true</code> if this shape cannot be modified
+     */
+    public boolean isFrozen() {
+        return children instanceof FrozenList;
+    }
+
+    /**
+     * Loads the label and children of a shape that is built on demand, see {@link LazyShapes}.
+     */
+    void materialize() {
+    }
+
+    protected void checkNotFrozen() {
+        if (isFrozen()) {
+            throw new IllegalStateException("shape is frozen");
+        }
+    }
+
     public Shape(String label, ArrayList<Shape> children) {
         this.label = label;
         this.children = children;
@@ -48,5 +107,86 @@ public class Shape
     public Shape() {
     }
 
+    /**
+     * The children of a frozen shape. The list has the exact size of its contents, and all methods
+     * that would modify it throw <code>UnsupportedOperationException</code>.
+     */
+    private static final class FrozenList extends ArrayList<Shape>
+    {
+        private static final long serialVersionUID = 1L;
+
+        FrozenList(Collection<Shape> children) {
+            super(children);
+        }
+
+        @Override
+        public boolean add(Shape shape) {
+            throw new UnsupportedOperationException();
+        }
 
+        @Override
+        public void add(int index, Shape shape) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Shape> shapes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends Shape> shapes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Shape set(int index, Shape shape) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Shape remove(int index) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object shape) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> shapes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> shapes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super Shape> filter) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<Shape> operator) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sort(Comparator<? super Shape> comparator) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Shape> subList(int fromIndex, int toIndex) {
+            return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+        }
+    }
 }
@@ -0,0 +1,543 @@
+package com.patnox.shapeshifter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A compact tree representation of parsed shapes. This handler stores every shape as an index into
+ * a set of primitive arrays (kind, parent, first child, next sibling, label offset and label length)
+ * instead of creating a {@link Circle} or {@link Square} object per shape. All labels share a single
+ * character pool.
+ * <p>
+ * Shapes are numbered in document order, starting at 0. The navigation methods take such a node
+ * number and return {@link #NONE} where there is no such relative. Example:
+ * </p>
+ *
+ * <pre>
+ * ShapeArena arena = new ShapeArena();
+ * new Parser(arena).parse(text);
+ * for (int root = arena.firstRoot(); root != ShapeArena.NONE; root = arena.nextSibling(root)) {
+ *     ...
+ * }
+ * </pre>
+ * <p>
+ * Shapes of subsequent parses are appended as further roots. Shapes that a failed parse left open
+ * are discarded when the next parse begins. An arena is not thread-safe while it is being filled,
+ * but can be read concurrently afterwards.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeArena extends ShapesHandler<Object, Object>
+{
+    /**
+     * The node number used for missing relatives.
+     */
+    public static final int NONE = -1;
+
+    /**
+     * The kind of SQUARE shapes.
+     */
+    public static final int SQUARE = 0;
+
+    /**
+     * The kind of CIRCLE shapes.
+     */
+    public static final int CIRCLE = 1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private byte[] kinds;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] labelOffsets;
+    private int[] labelLengths;
+    private char[] labelPool;
+    private int labelFill;
+    private int size;
+    private int firstRoot = NONE;
+    private int lastRoot = NONE;
+
+    // the currently open shapes and the last child seen on each of them
+    private int[] openNodes = new int[32];
+    private int[] lastChildren = new int[32];
+    private int depth;
+
+    public ShapeArena()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an arena with room for the given number of shapes before its arrays need to grow.
+     *
+     * @param capacity
+     *          the initial number of shapes
+     */
+    public ShapeArena(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity is zero or negative");
+        }
+        kinds = new byte[capacity];
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        labelOffsets = new int[capacity];
+        labelLengths = new int[capacity];
+        labelPool = new char[capacity * 4];
+    }
+
+    @Override
+    public Object startSquare()
+    {
+        open(SQUARE);
+        return null;
+    }
+
+    @Override
+    public Object startCircle()
+    {
+        open(CIRCLE);
+        return null;
+    }
+
+    @Override
+    public void endSquare(Object square)
+    {
+        depth--;
+    }
+
+    @Override
+    public void endCircle(Object circle)
+    {
+        depth--;
+    }
+
+    @Override
+    public void endSquareLabel(Object square, CharSequence name)
+    {
+        appendLabel(name);
+    }
+
+    @Override
+    public void endSquareLabel(Object square, ByteBuffer source, int offset, int length)
+    {
+        appendLabel(source, offset, length);
+    }
+
+    @Override
+    public void endSquareLabel(Object square, long label)
+    {
+        int length = 1;
+        for (long rest = label / 10; rest != 0; rest /= 10)
+        {
+            length++;
+        }
+        ensureLabelCapacity(length);
+        for (int i = labelFill + length - 1; i >= labelFill; i--)
+        {
+            labelPool[i] = (char)('0' + label % 10);
+            label /= 10;
+        }
+        endLabel(length);
+    }
+
+    @Override
+    public void endCircleLabel(Object circle, CharSequence name)
+    {
+        appendLabel(name);
+    }
+
+    @Override
+    public void endCircleLabel(Object circle, ByteBuffer source, int offset, int length)
+    {
+        appendLabel(source, offset, length);
+    }
+
+    @Override
+    protected boolean isChildLabelUsed()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the number of shapes in this arena.
+     *
+     * @return the number of shapes
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the first top-level shape.
+     *
+     * @return the first root, or {@link #NONE} if the arena is empty
+     */
+    public int firstRoot()
+    {
+        return firstRoot;
+    }
+
+    /**
+     * Returns the kind of the given shape.
+     *
+     * @param node
+     *          the shape
+     * @return {@link #SQUARE} or {@link #CIRCLE}
+     */
+    public int kind(int node)
+    {
+        checkNode(node);
+        return kinds[node];
+    }
+
+    /**
+     * Returns the shape that contains the given shape.
+     *
+     * @param node
+     *          the shape
+     * @return the parent, or {@link #NONE} for top-level shapes
+     */
+    public int parent(int node)
+    {
+        checkNode(node);
+        return parents[node];
+    }
+
+    /**
+     * Returns the first inner shape of the given shape.
+     *
+     * @param node
+     *          the shape
+     * @return the first child, or {@link #NONE} for leaves
+     */
+    public int firstChild(int node)
+    {
+        checkNode(node);
+        return firstChildren[node];
+    }
+
+    /**
+     * Returns the shape that follows the given shape within the same parent, or within the top level
+     * for roots.
+     *
+     * @param node
+     *          the shape
+     * @return the next sibling, or {@link #NONE} for the last child
+     */
+    public int nextSibling(int node)
+    {
+        checkNode(node);
+        return nextSiblings[node];
+    }
+
+    /**
+     * Returns the length of the label of the given shape.
+     *
+     * @param node
+     *          the shape
+     * @return the label length
+     */
+    public int labelLength(int node)
+    {
+        checkNode(node);
+        return labelLengths[node];
+    }
+
+    /**
+     * Returns a character of the label of the given shape, without creating a <code>String</code>.
+     *
+     * @param node
+     *          the shape
+     * @param index
+     *          the index of the label character
+     * @return the label character
+     */
+    public char labelCharAt(int node, int index)
+    {
+        checkNode(node);
+        if (index < 0 || index >= labelLengths[node])
+        {
+            throw new IndexOutOfBoundsException("index " + index + " out of label bounds");
+        }
+        return labelPool[labelOffsets[node] + index];
+    }
+
+    /**
+     * Compares the label of the given shape with the given text, without creating a
+     * <code>String</code>.
+     *
+     * @param node
+     *          the shape
+     * @param text
+     *          the text to compare with
+     * @return <code>true</code> if the label equals the text
+     */
+    public boolean labelEquals(int node, CharSequence text)
+    {
+        checkNode(node);
+        int length = labelLengths[node];
+        if (text.length() != length)
+        {
+            return false;
+        }
+        int offset = labelOffsets[node];
+        for (int i = 0; i < length; i++)
+        {
+            if (labelPool[offset + i] != text.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the label of the given shape as a new <code>String</code>.
+     *
+     * @param node
+     *          the shape
+     * @return the label
+     */
+    public String label(int node)
+    {
+        checkNode(node);
+        return new String(labelPool, labelOffsets[node], labelLengths[node]);
+    }
+
+    /**
+     * Converts the given shape and all its inner shapes into {@link Circle} and {@link Square}
+     * objects, e.g. to display it in a {@link TreeView}.
+     *
+     * @param node
+     *          the shape
+     * @return the object representation of the shape
+     */
+    public Shape toShape(int node)
+    {
+        checkNode(node);
+        Shape root = newShape(node);
+        Shape[] shapes = new Shape[16];
+        int[] nodes = new int[16];
+        shapes[0] = root;
+        nodes[0] = node;
+        int pending = 1;
+        while (pending > 0)
+        {
+            pending--;
+            Shape shape = shapes[pending];
+            int parent = nodes[pending];
+            shapes[pending] = null;
+            for (int child = firstChildren[parent]; child != NONE; child = nextSiblings[child])
+            {
+                Shape childShape = newShape(child);
+                shape.addChild(childShape);
+                if (pending == shapes.length)
+                {
+                    shapes = Arrays.copyOf(shapes, pending * 2);
+                    nodes = Arrays.copyOf(nodes, pending * 2);
+                }
+                shapes[pending] = childShape;
+                nodes[pending] = child;
+                pending++;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Converts all top-level shapes into a {@link ShapesContainer}, see {@link #toShape(int)}.
+     *
+     * @return a container with all top-level shapes
+     */
+    public ShapesContainer toShapes()
+    {
+        ArrayList<Shape> roots = new ArrayList<>();
+        for (int root = firstRoot; root != NONE; root = nextSiblings[root])
+        {
+            roots.add(toShape(root));
+        }
+        return new ShapesContainer(roots);
+    }
+
+    /**
+     * Discards the shapes that a failed parse left open, together with their inner shapes, so that
+     * the shapes of the next parse become further roots. Shapes completed before the failure are
+     * kept.
+     */
+    @Override
+    protected void startParse()
+    {
+        if (depth == 0)
+        {
+            return;
+        }
+        int root = openNodes[0];
+        if (firstRoot == root)
+        {
+            firstRoot = NONE;
+            lastRoot = NONE;
+        }
+        else
+        {
+            int previous = firstRoot;
+            while (nextSiblings[previous] != root)
+            {
+                previous = nextSiblings[previous];
+            }
+            nextSiblings[previous] = NONE;
+            lastRoot = previous;
+        }
+        labelFill = labelOffsets[root];
+        size = root;
+        depth = 0;
+    }
+
+    /**
+     * Removes all shapes from this arena, keeping the allocated arrays for reuse.
+     */
+    public void clear()
+    {
+        size = 0;
+        labelFill = 0;
+        depth = 0;
+        firstRoot = NONE;
+        lastRoot = NONE;
+    }
+
+    /**
+     * Removes all shapes, see {@link #clear()}. The arena itself holds the results, so unlike
+     * {@link ShapesHandlerImpl} it does not keep them valid: node numbers and labels read before the
+     * reset must have been copied, e.g. with {@link #toShapes()}. A pooled arena is reset when its
+     * lease is closed, see {@link ParserPool}.
+     */
+    @Override
+    protected void reset()
+    {
+        clear();
+    }
+
+    private Shape newShape(int node)
+    {
+        String label = new String(labelPool, labelOffsets[node], labelLengths[node]);
+        if (kinds[node] == SQUARE)
+        {
+            Square square = new Square();
+            square.setLabel(label);
+            return square;
+        }
+        return new Circle(label);
+    }
+
+    private void open(int kind)
+    {
+        if (size == kinds.length)
+        {
+            int capacity = Math.max(size + 1, size + (size >> 1));
+            kinds = Arrays.copyOf(kinds, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            labelOffsets = Arrays.copyOf(labelOffsets, capacity);
+            labelLengths = Arrays.copyOf(labelLengths, capacity);
+        }
+        int node = size++;
+        kinds[node] = (byte)kind;
+        firstChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        labelOffsets[node] = labelFill;
+        labelLengths[node] = 0;
+        if (depth == 0)
+        {
+            parents[node] = NONE;
+            if (lastRoot == NONE)
+            {
+                firstRoot = node;
+            }
+            else
+            {
+                nextSiblings[lastRoot] = node;
+            }
+            lastRoot = node;
+        }
+        else
+        {
+            int parent = openNodes[depth - 1];
+            if (kind == CIRCLE && kinds[parent] == SQUARE)
+            {
+                size--;
+                throw new ParseException("Error: Invalid Syntax: Squares Should only contain other squares", getLocation());
+            }
+            parents[node] = parent;
+            int previous = lastChildren[depth - 1];
+            if (previous == NONE)
+            {
+                firstChildren[parent] = node;
+            }
+            else
+            {
+                nextSiblings[previous] = node;
+            }
+            lastChildren[depth - 1] = node;
+        }
+        if (depth == openNodes.length)
+        {
+            openNodes = Arrays.copyOf(openNodes, depth * 2);
+            lastChildren = Arrays.copyOf(lastChildren, depth * 2);
+        }
+        openNodes[depth] = node;
+        lastChildren[depth] = NONE;
+        depth++;
+    }
+
+    private void appendLabel(CharSequence name)
+    {
+        int length = name.length();
+        ensureLabelCapacity(length);
+        for (int i = 0; i < length; i++)
+        {
+            labelPool[labelFill + i] = name.charAt(i);
+        }
+        endLabel(length);
+    }
+
+    private void appendLabel(ByteBuffer source, int offset, int length)
+    {
+        ensureLabelCapacity(length);
+        for (int i = 0; i < length; i++)
+        {
+            labelPool[labelFill + i] = (char)(source.get(offset + i) & 0xff);
+        }
+        endLabel(length);
+    }
+
+    private void endLabel(int length)
+    {
+        int node = openNodes[depth - 1];
+        labelOffsets[node] = labelFill;
+        labelLengths[node] = length;
+        labelFill += length;
+    }
+
+    private void ensureLabelCapacity(int length)
+    {
+        if (labelFill + length > labelPool.length)
+        {
+            labelPool = Arrays.copyOf(labelPool, Math.max(labelPool.length * 2, labelFill + length));
+        }
+    }
+
+    private void checkNode(int node)
+    {
+        if (node < 0 || node >= size)
+        {
+            throw new IndexOutOfBoundsException("node " + node + " out of bounds");
+        }
+    }
+}
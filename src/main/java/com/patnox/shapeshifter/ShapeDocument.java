@@ -0,0 +1,538 @@
+package com.patnox.shapeshifter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed document that can be edited without parsing it again from scratch. The document keeps
+ * its text, the {@link Shape} tree and the extent of every shape in the text. An edit replaces a
+ * range of the text and re-parses only the smallest shape that encloses the edit and is still
+ * balanced afterwards. All other shapes are kept, including the untouched inner shapes of the
+ * re-parsed shape, which are skipped over without reading their labels.
+ * <p>
+ * Edits between top-level shapes, or edits that change the bracket structure of all enclosing
+ * shapes, re-parse only the top-level shapes touched by the edit. Example:
+ * </p>
+ *
+ * <pre>
+ * ShapeDocument document = new ShapeDocument("(BALL(INK[1[35]])(CHARLIE))");
+ * Shape changed = document.edit(9, 0, "(PEN)");
+ * </pre>
+ * <p>
+ * Extents are stored relative to the enclosing shape, so an edit only updates the shapes on the path
+ * to the edit and their later siblings. The container returned by {@link #getShapes()} is updated in
+ * place. A document is not thread-safe.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeDocument
+{
+    private final StringBuilder text;
+    private final ShapesContainer shapes;
+    private final Span root;
+
+    /**
+     * Parses the given text into a new document.
+     *
+     * @param text
+     *          the input string, must be valid TEXT
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     */
+    public ShapeDocument(String text)
+    {
+        if (text == null)
+        {
+            throw new NullPointerException("text is null");
+        }
+        SpanHandler handler = new SpanHandler();
+        new Parser(handler).parse(text);
+        this.text = new StringBuilder(text);
+        shapes = new ShapesContainer(handler.getParent());
+        root = new Span(shapes);
+        root.length = text.length();
+        root.children = handler.spans;
+        for (Span span : root.children)
+        {
+            span.parent = root;
+        }
+    }
+
+    /**
+     * Returns the current text of this document.
+     *
+     * @return the text
+     */
+    public String getText()
+    {
+        return text.toString();
+    }
+
+    /**
+     * Returns the length of the text of this document.
+     *
+     * @return the number of characters
+     */
+    public int length()
+    {
+        return text.length();
+    }
+
+    /**
+     * Returns the top-level shapes of this document. The container is the same for the lifetime of
+     * the document and reflects all edits.
+     *
+     * @return a container with all top-level shapes
+     */
+    public ShapesContainer getShapes()
+    {
+        return shapes;
+    }
+
+    /**
+     * Replaces a range of the text and updates the shapes. If the edited text is not valid TEXT, the
+     * document is left unchanged.
+     *
+     * @param offset
+     *          the index of the first character to replace
+     * @param deletedLength
+     *          the number of characters to remove
+     * @param insertedText
+     *          the text to insert at <code>offset</code>
+     * @return the shape that was re-parsed, or the container returned by {@link #getShapes()} if
+     *         top-level shapes were re-parsed
+     * @throws ParseException
+     *           if the edited text is not valid TEXT
+     */
+    public Shape edit(int offset, int deletedLength, String insertedText)
+    {
+        if (insertedText == null)
+        {
+            throw new NullPointerException("insertedText is null");
+        }
+        if (offset < 0 || deletedLength < 0 || offset > text.length() - deletedLength)
+        {
+            throw new IndexOutOfBoundsException("edit " + offset + "+" + deletedLength + " out of bounds");
+        }
+        int end = offset + deletedLength;
+        int delta = insertedText.length() - deletedLength;
+
+        // the innermost shape with the edit strictly between its brackets
+        Span target = root;
+        int targetStart = 0;
+        while (true)
+        {
+            int child = target.childAt(offset - 1 - targetStart);
+            if (child < 0)
+            {
+                break;
+            }
+            Span span = target.children.get(child);
+            int start = targetStart + span.start;
+            if (offset <= start || end > start + span.length - 1)
+            {
+                break;
+            }
+            target = span;
+            targetStart = start;
+        }
+
+        for (; target != root; targetStart -= target.start, target = target.parent)
+        {
+            String shapeText = text.substring(targetStart, offset) + insertedText
+                + text.substring(end, targetStart + target.length);
+            if (isSingleShape(shapeText))
+            {
+                SpanHandler handler = new SpanHandler(target, offset - targetStart, end - targetStart, delta);
+                parse(handler, shapeText, targetStart);
+                Span span = handler.spans.get(0);
+                handler.commit(span);
+                Span parent = target.parent;
+                int index = parent.childAt(target.start);
+                replace(parent, index, index + 1, handler, target.start);
+                shift(parent, index + 1, delta);
+                text.replace(offset, end, insertedText);
+                return span.shape;
+            }
+        }
+
+        // the top-level shapes touched by the edit
+        int from = 0;
+        int to = root.children.size();
+        while (from < to && root.children.get(from).end() <= offset)
+        {
+            from++;
+        }
+        int rangeEnd = from;
+        while (rangeEnd < to && root.children.get(rangeEnd).start < end)
+        {
+            rangeEnd++;
+        }
+        int regionStart = from > 0 ? root.children.get(from - 1).end() : 0;
+        int regionEnd = rangeEnd < to ? root.children.get(rangeEnd).start : text.length();
+        String regionText = text.substring(regionStart, offset) + insertedText + text.substring(end, regionEnd);
+        SpanHandler handler = new SpanHandler();
+        if (!regionText.trim().isEmpty() || (from == 0 && rangeEnd == to))
+        {
+            // a document without any shapes is rejected like by the parser
+            try
+            {
+                parse(handler, regionText, regionStart);
+            }
+            catch (ParseException exception)
+            {
+                if (regionEnd == text.length() || exception.getLocation().offset != regionStart + regionText.length())
+                {
+                    throw exception;
+                }
+                // the region ends inside a shape left open by the edit, which runs on to the end of the document
+                rangeEnd = to;
+                regionEnd = text.length();
+                regionText = text.substring(regionStart, offset) + insertedText + text.substring(end);
+                handler = new SpanHandler();
+                parse(handler, regionText, regionStart);
+            }
+        }
+        replace(root, from, rangeEnd, handler, regionStart);
+        shift(root, from + handler.spans.size(), delta);
+        text.replace(offset, end, insertedText);
+        return shapes;
+    }
+
+    /**
+     * Parses the given part of the document. Errors are reported with their location in the whole
+     * document.
+     */
+    private void parse(SpanHandler handler, String part, int partStart)
+    {
+        handler.partStart = partStart;
+        Parser parser = new Parser(handler);
+        parser.setOrigin(locate(partStart));
+        parser.parse(part);
+    }
+
+    private Location locate(int offset)
+    {
+        int line = 1;
+        int lineOffset = 0;
+        for (int i = 0; i < offset; i++)
+        {
+            if (text.charAt(i) == '\n')
+            {
+                line++;
+                lineOffset = i + 1;
+            }
+        }
+        return new Location(offset, line, offset - lineOffset + 1);
+    }
+
+    /**
+     * Replaces the children <code>from</code> to <code>to</code> of the given span and its shape with
+     * the shapes of the given handler, which start at <code>start</code> relative to the span.
+     */
+    private static void replace(Span parent, int from, int to, SpanHandler handler, int start)
+    {
+        List<Shape> shapeChildren = parent.shape.getChildren();
+        shapeChildren.subList(from, to).clear();
+        shapeChildren.addAll(from, handler.getParent());
+        parent.children.subList(from, to).clear();
+        for (Span span : handler.spans)
+        {
+            span.start += start;
+            span.parent = parent;
+        }
+        parent.children.addAll(from, handler.spans);
+    }
+
+    /**
+     * Moves the children of the given span from the given index on by <code>delta</code>, and does
+     * the same for the later siblings of the span and of all its ancestors.
+     */
+    private static void shift(Span span, int index, int delta)
+    {
+        while (true)
+        {
+            for (int i = index; i < span.children.size(); i++)
+            {
+                span.children.get(i).start += delta;
+            }
+            span.length += delta;
+            Span parent = span.parent;
+            if (parent == null)
+            {
+                return;
+            }
+            index = parent.childAt(span.start) + 1;
+            span = parent;
+        }
+    }
+
+    /**
+     * Returns whether the given text is exactly one shape by its brackets, i.e. its first bracket is
+     * only closed by its last character.
+     */
+    private static boolean isSingleShape(String shapeText)
+    {
+        int depth = 0;
+        int last = shapeText.length() - 1;
+        for (int i = 0; i <= last; i++)
+        {
+            switch (shapeText.charAt(i))
+            {
+                case '[':
+                case '(':
+                    depth++;
+                    break;
+                case ']':
+                case ')':
+                    depth--;
+                    if (depth <= 0 && i != last)
+                    {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return depth == 0;
+    }
+
+    /**
+     * The extent of a shape in the text. The start is relative to the start of the enclosing shape.
+     */
+    private static class Span
+    {
+        final Shape shape;
+        Span parent;
+        ArrayList<Span> children;
+        int start;
+        int length;
+
+        Span(Shape shape)
+        {
+            this.shape = shape;
+        }
+
+        int end()
+        {
+            return start + length;
+        }
+
+        /**
+         * Returns the index of the child that contains the given offset relative to this span, or -1.
+         */
+        int childAt(int offset)
+        {
+            if (children == null)
+            {
+                return -1;
+            }
+            int low = 0;
+            int high = children.size() - 1;
+            while (low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                Span child = children.get(middle);
+                if (offset < child.start)
+                {
+                    high = middle - 1;
+                }
+                else if (offset >= child.end())
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Builds shapes together with their extents. When re-parsing a shape, the inner shapes of the old
+     * shape outside of the edit are skipped and reused.
+     */
+    private static class SpanHandler extends ShapesHandlerImpl
+    {
+        final ArrayList<Span> spans = new ArrayList<>();
+        private final ArrayList<Span> open = new ArrayList<>();
+        private final ArrayList<Span> reusable;
+        private final int editStart;
+        private final int editEnd;
+        private final int delta;
+        private final ArrayList<Span> reused = new ArrayList<>();
+        private final ArrayList<Integer> reusedStarts = new ArrayList<>();
+        private int next;
+        int partStart;
+
+        SpanHandler()
+        {
+            this(null, 0, 0, 0);
+        }
+
+        SpanHandler(Span target, int editStart, int editEnd, int delta)
+        {
+            this.reusable = target != null ? target.children : null;
+            this.editStart = editStart;
+            this.editEnd = editEnd;
+            this.delta = delta;
+        }
+
+        @Override
+        public Square startSquare()
+        {
+            Square square = super.startSquare();
+            open(square);
+            return square;
+        }
+
+        @Override
+        public Circle startCircle()
+        {
+            Circle circle = super.startCircle();
+            open(circle);
+            return circle;
+        }
+
+        @Override
+        public void endSquare(Square square)
+        {
+            super.endSquare(square);
+            close();
+        }
+
+        @Override
+        public void endCircle(Circle circle)
+        {
+            super.endCircle(circle);
+            close();
+        }
+
+        @Override
+        protected boolean isChildLabelUsed()
+        {
+            return false;
+        }
+
+        @Override
+        boolean isStringLabelUsed()
+        {
+            return false;
+        }
+
+        @Override
+        protected boolean skipSquare()
+        {
+            return reuse(true);
+        }
+
+        @Override
+        protected boolean skipCircle()
+        {
+            return reuse(false);
+        }
+
+        /**
+         * Reuses the old inner shape at the current location, if there is one outside of the edit.
+         */
+        private boolean reuse(boolean square)
+        {
+            if (reusable == null || open.size() != 1)
+            {
+                return false;
+            }
+            int offset = offset();
+            while (next < reusable.size())
+            {
+                Span span = reusable.get(next);
+                int start;
+                if (span.end() <= editStart)
+                {
+                    start = span.start;
+                }
+                else if (span.start >= editEnd)
+                {
+                    start = span.start + delta;
+                }
+                else
+                {
+                    next++;
+                    continue;
+                }
+                if (start > offset)
+                {
+                    return false;
+                }
+                next++;
+                if (start == offset && span.shape instanceof Square == square)
+                {
+                    Span parent = open.get(0);
+                    parent.shape.addChild(span.shape);
+                    parent.children.add(span);
+                    reused.add(span);
+                    reusedStarts.add(start);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Moves the reused shapes into the given new shape, once the parse has succeeded.
+         */
+        void commit(Span span)
+        {
+            for (int i = 0; i < reused.size(); i++)
+            {
+                Span child = reused.get(i);
+                child.parent = span;
+                child.start = reusedStarts.get(i);
+            }
+        }
+
+        private void open(Shape shape)
+        {
+            Span span = new Span(shape);
+            int offset = offset();
+            if (open.isEmpty())
+            {
+                span.start = offset;
+                spans.add(span);
+            }
+            else
+            {
+                Span parent = open.get(open.size() - 1);
+                span.start = offset - absoluteStart(parent);
+                span.parent = parent;
+                parent.children.add(span);
+            }
+            span.children = new ArrayList<>(0);
+            span.length = offset;
+            open.add(span);
+        }
+
+        private void close()
+        {
+            Span span = open.remove(open.size() - 1);
+            span.length = offset() - span.length;
+        }
+
+        /**
+         * The current offset in the parsed part of the document.
+         */
+        private int offset()
+        {
+            return parser.getOffset() - partStart;
+        }
+
+        private int absoluteStart(Span span)
+        {
+            // the length field holds the absolute start while a span is open
+            return span.length;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.patnox.shapeshifter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * A pull parser for TEXT. Instead of pushing every shape to a {@link ShapesHandler}, the reader
+ * returns one event per call to {@link #next()}, so the consumer decides when to read on and can stop
+ * at any point. Example:
+ *
+ * <pre>
+ * ShapeEventReader reader = new ShapeEventReader(text);
+ * while (reader.hasNext()) {
+ *     switch (reader.next()) {
+ *         case ShapeEventReader.START_CIRCLE:
+ *             ...
+ *     }
+ * }
+ * </pre>
+ * <p>
+ * Every shape produces a start event, a {@link #LABEL} event and, after the events of its inner
+ * shapes, an {@link #END} event. The reader runs the same scanner as {@link Parser}, one shape at a
+ * time, and rejects circles inside squares like {@link ShapesHandlerImpl}, so it accepts exactly the
+ * same input and reports the same errors.
+ * </p>
+ * <p>
+ * The label is read in place from the input buffer and only copied into a <code>String</code> when
+ * {@link #getLabel()} is called.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeEventReader implements Closeable
+{
+    /**
+     * The event at the opening bracket of a SQUARE.
+     */
+    public static final int START_SQUARE = 1;
+
+    /**
+     * The event at the opening bracket of a CIRCLE.
+     */
+    public static final int START_CIRCLE = 2;
+
+    /**
+     * The event at the label of the shape started by the previous event.
+     */
+    public static final int LABEL = 3;
+
+    /**
+     * The event at the closing bracket of a shape.
+     */
+    public static final int END = 4;
+
+    /**
+     * The event after the last shape of the input.
+     */
+    public static final int END_DOCUMENT = 5;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final Reader input;
+    private final Parser parser;
+    private final EventQueue events = new EventQueue();
+    private boolean started;
+    private int event;
+    private int depth;
+
+    /**
+     * Creates a reader over the given string.
+     *
+     * @param string
+     *          the input string, must be valid TEXT
+     */
+    public ShapeEventReader(String string)
+    {
+        this(new StringReader(check(string, "string")), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a reader over the characters of the given reader. Characters are read in chunks into
+     * an input buffer of the given size.
+     *
+     * @param reader
+     *          the reader to read the input from
+     * @param buffersize
+     *          the size of the input buffer in chars
+     */
+    public ShapeEventReader(Reader reader, int buffersize)
+    {
+        check(reader, "reader");
+        if (buffersize <= 0)
+        {
+            throw new IllegalArgumentException("buffersize is zero or negative");
+        }
+        input = reader;
+        parser = new Parser(events);
+        parser.open(reader, buffersize);
+    }
+
+    /**
+     * Creates a reader over the remaining bytes of the given buffer, see
+     * {@link Parser#parse(ByteBuffer)}. The position of the buffer is not changed.
+     *
+     * @param buffer
+     *          the buffer to read the input from
+     */
+    public ShapeEventReader(ByteBuffer buffer)
+    {
+        check(buffer, "buffer");
+        input = null;
+        parser = new Parser(events);
+        parser.open(buffer);
+    }
+
+    private static <T> T check(T argument, String name)
+    {
+        if (argument == null)
+        {
+            throw new NullPointerException(name + " is null");
+        }
+        return argument;
+    }
+
+    /**
+     * Returns whether there are more events, i.e. whether the last event was not
+     * {@link #END_DOCUMENT}.
+     *
+     * @return <code>true</code> if {@link #next()} can be called
+     */
+    public boolean hasNext()
+    {
+        return event != END_DOCUMENT;
+    }
+
+    /**
+     * Reads the next event.
+     *
+     * @return one of {@link #START_SQUARE}, {@link #START_CIRCLE}, {@link #LABEL}, {@link #END} or
+     *         {@link #END_DOCUMENT}
+     * @throws IOException
+     *           if an I/O error occurs in the reader
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     * @throws NoSuchElementException
+     *           if the end of the document has already been reached
+     */
+    public int next() throws IOException
+    {
+        if (event == END_DOCUMENT)
+        {
+            throw new NoSuchElementException("end of document");
+        }
+        if (event == END)
+        {
+            depth--;
+        }
+        events.poll();
+        while (events.isEmpty())
+        {
+            if (!started)
+            {
+                started = true;
+                parser.begin();
+            }
+            if (!parser.step())
+            {
+                event = END_DOCUMENT;
+                return event;
+            }
+        }
+        event = events.kind();
+        if (event == START_SQUARE || event == START_CIRCLE)
+        {
+            depth++;
+        }
+        return event;
+    }
+
+    /**
+     * Skips the inner shapes of the current shape. If the current event is a start or
+     * {@link #LABEL} event, the reader is moved to the {@link #END} event of that shape. The inner
+     * shapes are fast-forwarded without reading their labels, so they are only checked for balanced
+     * brackets, see {@link ShapesHandler#skipSquare()}.
+     *
+     * @throws IOException
+     *           if an I/O error occurs in the reader
+     * @throws ParseException
+     *           if the input is not valid TEXT
+     * @throws IllegalStateException
+     *           if the current event is not a start or label event
+     */
+    public void skipChildren() throws IOException
+    {
+        if (event != START_SQUARE && event != START_CIRCLE && event != LABEL)
+        {
+            throw new IllegalStateException("not at the start of a shape");
+        }
+        if (event != LABEL)
+        {
+            // drop the label event of the current shape
+            events.poll();
+        }
+        parser.skipChildren();
+        next();
+    }
+
+    /**
+     * Returns the current event.
+     *
+     * @return the event returned by the last call to {@link #next()}, or 0 before the first call
+     */
+    public int getEventType()
+    {
+        return event;
+    }
+
+    /**
+     * Returns the nesting depth of the current shape. Top-level shapes are at depth 1, and the
+     * {@link #END} event of a shape has the same depth as its start event.
+     *
+     * @return the depth, 0 outside of all shapes
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Returns whether the current event belongs to a SQUARE.
+     *
+     * @return <code>true</code> for events of squares, <code>false</code> for events of circles
+     * @throws IllegalStateException
+     *           if the current event does not belong to a shape
+     */
+    public boolean isSquare()
+    {
+        checkShape();
+        return events.square();
+    }
+
+    /**
+     * Returns the label of the current shape.
+     *
+     * @return the label
+     * @throws IllegalStateException
+     *           if the current event is not {@link #LABEL}
+     */
+    public String getLabel()
+    {
+        if (event != LABEL)
+        {
+            throw new IllegalStateException("not at a label");
+        }
+        return events.label();
+    }
+
+    /**
+     * Returns the location of the current event: the bracket of start and end events, or the first
+     * character of a label.
+     *
+     * @return the location of the current event
+     * @throws IllegalStateException
+     *           if the current event does not belong to a shape
+     */
+    public Location getLocation()
+    {
+        checkShape();
+        return events.location();
+    }
+
+    /**
+     * Closes the underlying reader, if any.
+     *
+     * @throws IOException
+     *           if an I/O error occurs in the reader
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (input != null)
+        {
+            input.close();
+        }
+    }
+
+    private void checkShape()
+    {
+        if (event == 0 || event == END_DOCUMENT)
+        {
+            throw new IllegalStateException("not at a shape");
+        }
+    }
+
+    /**
+     * Collects the callbacks of one parser step as events. A step either opens a shape, which results
+     * in a start and a label event, or closes one, which results in an end event.
+     */
+    private static class EventQueue extends ShapesHandler<Object, Object>
+    {
+        private final int[] kinds = new int[2];
+        private final boolean[] squares = new boolean[2];
+        private final int[] offsets = new int[2];
+        private final int[] lines = new int[2];
+        private final int[] columns = new int[2];
+        private int head;
+        private int size;
+        private CharSequence label;
+        private long number;
+        private boolean numeric;
+        private boolean inSquare;
+
+        boolean isEmpty()
+        {
+            return head == size;
+        }
+
+        void poll()
+        {
+            if (head < size)
+            {
+                head++;
+            }
+            if (head == size)
+            {
+                head = 0;
+                size = 0;
+            }
+        }
+
+        int kind()
+        {
+            return kinds[head];
+        }
+
+        boolean square()
+        {
+            return squares[head];
+        }
+
+        Location location()
+        {
+            return new Location(offsets[head], lines[head], columns[head]);
+        }
+
+        String label()
+        {
+            return numeric ? Long.toString(number) : label.toString();
+        }
+
+        private void add(int kind, boolean square, int back)
+        {
+            kinds[size] = kind;
+            squares[size] = square;
+            offsets[size] = parser.getOffset() - back;
+            lines[size] = parser.getLine();
+            columns[size] = parser.getColumn() - back;
+            size++;
+        }
+
+        @Override
+        public Object startSquare()
+        {
+            inSquare = false;
+            add(START_SQUARE, true, 0);
+            return null;
+        }
+
+        @Override
+        public Object startCircle()
+        {
+            if (inSquare)
+            {
+                throw new ParseException("Error: Invalid Syntax: Squares Should only contain other squares", getLocation());
+            }
+            add(START_CIRCLE, false, 0);
+            return null;
+        }
+
+        @Override
+        public void startSquareChild(Object square, String name)
+        {
+            inSquare = true;
+        }
+
+        @Override
+        public void startSquareLabel(Object square)
+        {
+            add(LABEL, true, 0);
+        }
+
+        @Override
+        public void startCircleLabel(Object circle)
+        {
+            add(LABEL, false, 0);
+        }
+
+        @Override
+        public void endSquareLabel(Object square, CharSequence name)
+        {
+            label = name;
+            numeric = false;
+        }
+
+        @Override
+        public void endSquareLabel(Object square, long name)
+        {
+            number = name;
+            numeric = true;
+        }
+
+        @Override
+        public void endCircleLabel(Object circle, CharSequence name)
+        {
+            label = name;
+            numeric = false;
+        }
+
+        // the closing bracket has already been consumed
+        @Override
+        public void endSquare(Object square)
+        {
+            add(END, true, 1);
+        }
+
+        @Override
+        public void endCircle(Object circle)
+        {
+            add(END, false, 1);
+        }
+
+        @Override
+        protected boolean isChildLabelUsed()
+        {
+            return false;
+        }
+    }
+}
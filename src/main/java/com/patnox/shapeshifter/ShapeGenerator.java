@@ -0,0 +1,320 @@
+package com.patnox.shapeshifter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates synthetic shape documents for load and scaling tests. Documents are streamed to a
+ * <code>Writer</code> shape by shape, so memory use only depends on the maximum depth, never on the
+ * size of the document.
+ * <p>
+ * The shape of the output is controlled by the maximum depth, the maximum number of inner shapes per
+ * shape, the share of squares among the inner shapes of circles and the maximum label length. With
+ * a positive error rate, that share of shapes is written with a defect, such as a lower case label or
+ * a circle inside a square, so that the document is rejected by the parser.
+ * </p>
+ * <p>
+ * A generator is seeded, so the same settings and seed always produce the same document.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeGenerator
+{
+    private static final int ERROR_KINDS = 4;
+
+    private final Random random;
+    private int maxDepth = 8;
+    private int maxChildren = 4;
+    private double squareRatio = 0.5;
+    private int maxLabelLength = 8;
+    private double errorRate;
+
+    private long shapeCount;
+    private long errorCount;
+
+    /**
+     * Creates a generator with the given seed and default settings.
+     *
+     * @param seed
+     *          the seed of the random sequence
+     */
+    public ShapeGenerator(long seed)
+    {
+        this.random = new Random(seed);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the deepest nesting level of generated shapes. Top-level shapes are at level 1.
+     *
+     * @param maxDepth
+     *          the maximum depth, must be positive
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth <= 0) {
+            throw new IllegalArgumentException("maxDepth is zero or negative");
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxChildren() {
+        return maxChildren;
+    }
+
+    /**
+     * Sets the maximum number of inner shapes per shape. The actual number is uniformly distributed
+     * between zero and this maximum.
+     *
+     * @param maxChildren
+     *          the maximum fan-out, must be &gt;= 0
+     */
+    public void setMaxChildren(int maxChildren) {
+        if (maxChildren < 0) {
+            throw new IllegalArgumentException("maxChildren is negative");
+        }
+        this.maxChildren = maxChildren;
+    }
+
+    public double getSquareRatio() {
+        return squareRatio;
+    }
+
+    /**
+     * Sets the probability that a top-level shape or an inner shape of a circle is a square. Inner
+     * shapes of squares are always squares.
+     *
+     * @param squareRatio
+     *          the share of squares, between 0 and 1
+     */
+    public void setSquareRatio(double squareRatio) {
+        if (!(squareRatio >= 0 && squareRatio <= 1)) {
+            throw new IllegalArgumentException("squareRatio is not between 0 and 1");
+        }
+        this.squareRatio = squareRatio;
+    }
+
+    public int getMaxLabelLength() {
+        return maxLabelLength;
+    }
+
+    /**
+     * Sets the maximum label length. The actual length is uniformly distributed between one and this
+     * maximum.
+     *
+     * @param maxLabelLength
+     *          the maximum label length, must be positive
+     */
+    public void setMaxLabelLength(int maxLabelLength) {
+        if (maxLabelLength <= 0) {
+            throw new IllegalArgumentException("maxLabelLength is zero or negative");
+        }
+        this.maxLabelLength = maxLabelLength;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * Sets the probability that a shape is written with a defect. The default is 0, which produces
+     * valid documents only.
+     *
+     * @param errorRate
+     *          the share of defective shapes, between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        if (!(errorRate >= 0 && errorRate <= 1)) {
+            throw new IllegalArgumentException("errorRate is not between 0 and 1");
+        }
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Returns the number of shapes written by this generator so far.
+     *
+     * @return the number of shapes
+     */
+    public long getShapeCount() {
+        return shapeCount;
+    }
+
+    /**
+     * Returns the number of defects written by this generator so far.
+     *
+     * @return the number of defective shapes
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Writes top-level shapes, one per line, until at least the given number of characters has been
+     * written. The last shape is completed, so the output can be slightly larger than requested.
+     *
+     * @param writer
+     *          the writer to write the document to
+     * @param targetSize
+     *          the minimum number of characters to write
+     * @return the number of characters written
+     * @throws IOException
+     *           if an I/O error occurs in the writer
+     */
+    public long generate(Writer writer, long targetSize) throws IOException
+    {
+        if (writer == null) {
+            throw new NullPointerException("writer is null");
+        }
+        char[] closers = new char[maxDepth];
+        int[] remaining = new int[maxDepth];
+        char[] label = new char[maxLabelLength];
+        long written = 0;
+        do
+        {
+            boolean square = random.nextDouble() < squareRatio;
+            written += open(writer, square, 0, closers, remaining, label);
+            int depth = 1;
+            while (depth > 0)
+            {
+                int top = depth - 1;
+                if (remaining[top] == 0 || written >= targetSize)
+                {
+                    writer.write(closers[top]);
+                    written++;
+                    depth--;
+                    continue;
+                }
+                remaining[top]--;
+                square = closers[top] == ']' || random.nextDouble() < squareRatio;
+                if (closers[top] == ']' && isError())
+                {
+                    // a circle inside a square
+                    square = false;
+                    errorCount++;
+                }
+                written += open(writer, square, depth, closers, remaining, label);
+                depth++;
+            }
+            writer.write('\n');
+            written++;
+        }
+        while (written < targetSize);
+        writer.flush();
+        return written;
+    }
+
+    /**
+     * Writes a document of at least the given size to the given file, see
+     * {@link #generate(Writer, long)}.
+     *
+     * @param path
+     *          the file to write, will be replaced if it exists
+     * @param targetSize
+     *          the minimum number of characters to write
+     * @return the number of characters written
+     * @throws IOException
+     *           if the file cannot be written
+     */
+    public long generate(Path path, long targetSize) throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII))
+        {
+            return generate(writer, targetSize);
+        }
+    }
+
+    private int open(Writer writer, boolean square, int level, char[] closers, int[] remaining, char[] label)
+        throws IOException
+    {
+        shapeCount++;
+        int length = 1 + random.nextInt(maxLabelLength);
+        for (int i = 0; i < length; i++)
+        {
+            label[i] = square ? (char)('0' + random.nextInt(10)) : (char)('A' + random.nextInt(26));
+        }
+        char closer = square ? ']' : ')';
+        if (isError())
+        {
+            errorCount++;
+            switch (random.nextInt(ERROR_KINDS))
+            {
+                case 0:
+                    // a lower case label
+                    label[random.nextInt(length)] = (char)('a' + random.nextInt(26));
+                    break;
+                case 1:
+                    // an empty label
+                    length = 0;
+                    break;
+                case 2:
+                    // a character outside the shapes alphabet
+                    label[random.nextInt(length)] = '$';
+                    break;
+                default:
+                    // a mismatched closing bracket
+                    closer = square ? ')' : ']';
+                    break;
+            }
+        }
+        writer.write(square ? '[' : '(');
+        writer.write(label, 0, length);
+        closers[level] = closer;
+        remaining[level] = level + 1 < maxDepth ? random.nextInt(maxChildren + 1) : 0;
+        return length + 1;
+    }
+
+    private boolean isError()
+    {
+        return errorRate > 0 && random.nextDouble() < errorRate;
+    }
+
+    /**
+     * Writes a generated document to a file. Usage:
+     * <pre>
+     * ShapeGenerator file size [seed [maxDepth [maxChildren [squareRatio [maxLabelLength [errorRate]]]]]]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: ShapeGenerator file size [seed [maxDepth [maxChildren [squareRatio [maxLabelLength [errorRate]]]]]]");
+            System.exit(1);
+        }
+        String[] options = Arrays.copyOf(args, 8);
+        ShapeGenerator generator = new ShapeGenerator(options[2] != null ? Long.parseLong(options[2]) : 0);
+        if (options[3] != null)
+        {
+            generator.setMaxDepth(Integer.parseInt(options[3]));
+        }
+        if (options[4] != null)
+        {
+            generator.setMaxChildren(Integer.parseInt(options[4]));
+        }
+        if (options[5] != null)
+        {
+            generator.setSquareRatio(Double.parseDouble(options[5]));
+        }
+        if (options[6] != null)
+        {
+            generator.setMaxLabelLength(Integer.parseInt(options[6]));
+        }
+        if (options[7] != null)
+        {
+            generator.setErrorRate(Double.parseDouble(options[7]));
+        }
+        long written = generator.generate(Paths.get(args[0]), Long.parseLong(args[1]));
+        System.out.println("Wrote " + written + " characters, " + generator.getShapeCount() + " shapes, "
+            + generator.getErrorCount() + " errors");
+    }
+}
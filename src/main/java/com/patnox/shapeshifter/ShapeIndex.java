@@ -0,0 +1,568 @@
+package com.patnox.shapeshifter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A handler that builds the same shapes as {@link ShapesHandlerImpl} and indexes them while parsing,
+ * so that shapes can be found by label, depth or kind without walking the tree. Example:
+ *
+ * <pre>
+ * ShapeIndex index = new ShapeIndex();
+ * new Parser(index).parse(text);
+ * for (int node : index.findCircles("BALL")) {
+ *     Shape ball = index.getShape(node);
+ *     ...
+ * }
+ * </pre>
+ * <p>
+ * Shapes are numbered in document order, starting at 0, so the inner shapes of a shape are the
+ * numbers from the shape up to {@link #getEnd(int)}. Every lookup returns its node numbers in
+ * ascending order, which allows to restrict a result to a subtree with a binary search. The index
+ * keeps one posting list of node numbers per label, one per depth and one bit set per kind. Numeric
+ * square labels are kept as <code>long</code> keys, so indexing them does not create strings.
+ * </p>
+ * <p>
+ * Shapes of subsequent parses are appended, and shapes that a failed parse left open are discarded
+ * when the next parse begins; {@link #reset()} empties the index. Shapes that are already parsed
+ * can be indexed with {@link #of(ShapesContainer)}. An index is not thread-safe while it is being
+ * filled, but can be read concurrently afterwards.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeIndex extends ShapesHandlerImpl
+{
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int[] NO_NODES = new int[0];
+
+    private Shape[] shapes;
+    private int[] depths;
+    private int[] ends;
+    private final BitSet circles = new BitSet();
+    private int size;
+
+    private final HashMap<String, Postings> circleLabels = new HashMap<>();
+    private final HashMap<String, Postings> squareLabels = new HashMap<>();
+    private long[] numberKeys = new long[16];
+    private Postings[] numberPostings = new Postings[16];
+    private int numberCount;
+    private final ArrayList<Postings> levels = new ArrayList<>();
+
+    // the currently open shapes
+    private int[] openNodes = new int[32];
+    private int depth;
+
+    public ShapeIndex()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an index with room for the given number of shapes before its arrays need to grow.
+     *
+     * @param capacity
+     *          the initial number of shapes
+     */
+    public ShapeIndex(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity is zero or negative");
+        }
+        shapes = new Shape[capacity];
+        depths = new int[capacity];
+        ends = new int[capacity];
+    }
+
+    /**
+     * Indexes the given shapes, which have already been parsed. Lazy shapes, see {@link LazyShapes},
+     * are materialized on the way.
+     *
+     * @param container
+     *          the top-level shapes
+     * @return the index of all shapes in the container
+     */
+    public static ShapeIndex of(ShapesContainer container)
+    {
+        if (container == null)
+        {
+            throw new NullPointerException("container is null");
+        }
+        ShapeIndex index = new ShapeIndex();
+        ArrayList<Shape> stack = new ArrayList<>();
+        ArrayList<Shape> roots = container.getChildren();
+        for (int i = roots.size() - 1; i >= 0; i--)
+        {
+            stack.add(roots.get(i));
+        }
+        // a null entry closes the shape opened before its children were pushed
+        while (!stack.isEmpty())
+        {
+            Shape shape = stack.remove(stack.size() - 1);
+            if (shape == null)
+            {
+                index.close(index.shapes[index.openNodes[index.depth - 1]]);
+                continue;
+            }
+            if (shape instanceof Square)
+            {
+                index.open(false);
+                index.indexSquareLabel((Square)shape);
+            }
+            else
+            {
+                index.open(true);
+                index.addPosting(index.circleLabels, shape.getLabel());
+            }
+            index.shapes[index.size - 1] = shape;
+            stack.add(null);
+            ArrayList<Shape> children = shape.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--)
+            {
+                stack.add(children.get(i));
+            }
+        }
+        index.parent.addAll(roots);
+        return index;
+    }
+
+    @Override
+    public Circle startCircle()
+    {
+        open(true);
+        return super.startCircle();
+    }
+
+    @Override
+    public Square startSquare()
+    {
+        open(false);
+        return super.startSquare();
+    }
+
+    @Override
+    public void endCircleLabel(Circle circle, CharSequence name)
+    {
+        super.endCircleLabel(circle, name);
+        addPosting(circleLabels, circle.getLabel());
+    }
+
+    @Override
+    public void endSquareLabel(Square square, CharSequence name)
+    {
+        super.endSquareLabel(square, name);
+        indexSquareLabel(square);
+    }
+
+    @Override
+    public void endSquareLabel(Square square, long label)
+    {
+        super.endSquareLabel(square, label);
+        numberPostings(label).add(openNodes[depth - 1]);
+    }
+
+    @Override
+    protected boolean isChildLabelUsed()
+    {
+        return false;
+    }
+
+    @Override
+    boolean isStringLabelUsed()
+    {
+        return false;
+    }
+
+    @Override
+    public void endCircle(Circle circle)
+    {
+        super.endCircle(circle);
+        close(value);
+    }
+
+    @Override
+    public void endSquare(Square square)
+    {
+        super.endSquare(square);
+        close(value);
+    }
+
+    /**
+     * Discards the shapes that a failed parse left open, together with their inner shapes and their
+     * postings, so that the shapes of the next parse are indexed as top-level shapes. Shapes
+     * completed before the failure are kept.
+     */
+    @Override
+    protected void startParse()
+    {
+        if (depth == 0)
+        {
+            return;
+        }
+        int root = openNodes[0];
+        Arrays.fill(shapes, root, size, null);
+        circles.clear(root, size);
+        size = root;
+        depth = 0;
+        for (Postings postings : circleLabels.values())
+        {
+            postings.truncate(root);
+        }
+        for (Postings postings : squareLabels.values())
+        {
+            postings.truncate(root);
+        }
+        for (Postings postings : numberPostings)
+        {
+            if (postings != null)
+            {
+                postings.truncate(root);
+            }
+        }
+        for (Postings postings : levels)
+        {
+            postings.truncate(root);
+        }
+        while (!levels.isEmpty() && levels.get(levels.size() - 1).size == 0)
+        {
+            levels.remove(levels.size() - 1);
+        }
+    }
+
+    /**
+     * Starts a new list of top-level shapes and empties the index.
+     */
+    @Override
+    protected void reset()
+    {
+        super.reset();
+        Arrays.fill(shapes, 0, size, null);
+        circles.clear();
+        size = 0;
+        circleLabels.clear();
+        squareLabels.clear();
+        Arrays.fill(numberKeys, 0);
+        Arrays.fill(numberPostings, null);
+        numberCount = 0;
+        levels.clear();
+        depth = 0;
+    }
+
+    /**
+     * Returns the number of indexed shapes.
+     *
+     * @return the number of shapes
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the shape with the given number.
+     *
+     * @param node
+     *          the shape number
+     * @return the shape
+     */
+    public Shape getShape(int node)
+    {
+        checkNode(node);
+        return shapes[node];
+    }
+
+    /**
+     * Returns the depth of the given shape, which is 1 for top-level shapes.
+     *
+     * @param node
+     *          the shape number
+     * @return the depth
+     */
+    public int getDepth(int node)
+    {
+        checkNode(node);
+        return depths[node];
+    }
+
+    /**
+     * Returns the number following the last inner shape of the given shape.
+     *
+     * @param node
+     *          the shape number
+     * @return the end of the subtree, exclusive
+     */
+    public int getEnd(int node)
+    {
+        checkNode(node);
+        return ends[node];
+    }
+
+    /**
+     * Returns whether the given shape is a CIRCLE.
+     *
+     * @param node
+     *          the shape number
+     * @return <code>true</code> for a circle, <code>false</code> for a square
+     */
+    public boolean isCircle(int node)
+    {
+        checkNode(node);
+        return circles.get(node);
+    }
+
+    /**
+     * Returns the circles with the given label.
+     *
+     * @param label
+     *          the label
+     * @return the shape numbers in ascending order
+     */
+    public int[] findCircles(String label)
+    {
+        if (label == null)
+        {
+            throw new NullPointerException("label is null");
+        }
+        return toArray(circleLabels.get(label));
+    }
+
+    /**
+     * Returns the squares with the given label. Labels that are numbers without leading zeros are
+     * found as by {@link #findSquares(long)}.
+     *
+     * @param label
+     *          the label
+     * @return the shape numbers in ascending order
+     */
+    public int[] findSquares(String label)
+    {
+        if (label == null)
+        {
+            throw new NullPointerException("label is null");
+        }
+        if (Square.isCanonicalNumber(label))
+        {
+            return findSquares(Long.parseLong(label));
+        }
+        return toArray(squareLabels.get(label));
+    }
+
+    /**
+     * Returns the squares with the given numeric label.
+     *
+     * @param number
+     *          the label
+     * @return the shape numbers in ascending order
+     */
+    public int[] findSquares(long number)
+    {
+        int slot = numberSlot(number);
+        return numberPostings[slot] != null ? numberPostings[slot].toArray() : NO_NODES;
+    }
+
+    /**
+     * Returns the shapes at the given depth.
+     *
+     * @param depth
+     *          the depth, 1 for top-level shapes
+     * @return the shape numbers in ascending order
+     */
+    public int[] atDepth(int depth)
+    {
+        if (depth <= 0)
+        {
+            throw new IllegalArgumentException("depth is zero or negative");
+        }
+        return depth <= levels.size() ? levels.get(depth - 1).toArray() : NO_NODES;
+    }
+
+    /**
+     * Returns the maximum depth of the indexed shapes.
+     *
+     * @return the depth of the deepest shape, or 0 if the index is empty
+     */
+    public int getMaxDepth()
+    {
+        return levels.size();
+    }
+
+    /**
+     * Returns the numbers of all circles. The returned set is a copy.
+     *
+     * @return the circles
+     */
+    public BitSet getCircles()
+    {
+        return (BitSet)circles.clone();
+    }
+
+    /**
+     * Returns the numbers of all squares. The returned set is a copy.
+     *
+     * @return the squares
+     */
+    public BitSet getSquares()
+    {
+        BitSet squares = new BitSet(size);
+        squares.set(0, size);
+        squares.andNot(circles);
+        return squares;
+    }
+
+    private void open(boolean circle)
+    {
+        int node = size++;
+        if (node == shapes.length)
+        {
+            int capacity = node * 2;
+            shapes = Arrays.copyOf(shapes, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        if (circle)
+        {
+            circles.set(node);
+        }
+        if (depth == openNodes.length)
+        {
+            openNodes = Arrays.copyOf(openNodes, depth * 2);
+        }
+        openNodes[depth++] = node;
+        depths[node] = depth;
+        if (depth > levels.size())
+        {
+            levels.add(new Postings());
+        }
+        levels.get(depth - 1).add(node);
+    }
+
+    /**
+     * Records the completed shape, which may have been replaced by its canonical instance.
+     */
+    private void close(Shape shape)
+    {
+        int node = openNodes[--depth];
+        shapes[node] = shape;
+        ends[node] = size;
+    }
+
+    private void indexSquareLabel(Square square)
+    {
+        if (square.isNumeric())
+        {
+            numberPostings(square.getNumber()).add(openNodes[depth - 1]);
+        }
+        else
+        {
+            addPosting(squareLabels, square.getLabel());
+        }
+    }
+
+    private void addPosting(HashMap<String, Postings> labels, String label)
+    {
+        Postings postings = labels.get(label);
+        if (postings == null)
+        {
+            postings = new Postings();
+            labels.put(label, postings);
+        }
+        postings.add(openNodes[depth - 1]);
+    }
+
+    /**
+     * Returns the posting list of the given number, creating it if needed.
+     */
+    private Postings numberPostings(long number)
+    {
+        int slot = numberSlot(number);
+        if (numberPostings[slot] == null)
+        {
+            numberKeys[slot] = number;
+            numberPostings[slot] = new Postings();
+            if (++numberCount > numberKeys.length - (numberKeys.length >>> 2))
+            {
+                long[] keys = numberKeys;
+                Postings[] postings = numberPostings;
+                numberKeys = new long[keys.length * 2];
+                numberPostings = new Postings[keys.length * 2];
+                for (int i = 0; i < keys.length; i++)
+                {
+                    if (postings[i] != null)
+                    {
+                        int next = numberSlot(keys[i]);
+                        numberKeys[next] = keys[i];
+                        numberPostings[next] = postings[i];
+                    }
+                }
+                slot = numberSlot(number);
+            }
+        }
+        return numberPostings[slot];
+    }
+
+    /**
+     * Returns the slot of the given number in the open addressing table, or the empty slot where it
+     * belongs.
+     */
+    private int numberSlot(long number)
+    {
+        long hash = number * 0x9e3779b97f4a7c15L;
+        int mask = numberKeys.length - 1;
+        int slot = (int)(hash ^ (hash >>> 32)) & mask;
+        while (numberPostings[slot] != null && numberKeys[slot] != number)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int[] toArray(Postings postings)
+    {
+        return postings != null ? postings.toArray() : NO_NODES;
+    }
+
+    private void checkNode(int node)
+    {
+        if (node < 0 || node >= size)
+        {
+            throw new IndexOutOfBoundsException("node " + node + " is out of range");
+        }
+    }
+
+    /**
+     * A growing list of shape numbers, which are added in ascending order.
+     */
+    private static final class Postings
+    {
+        private int[] nodes = new int[4];
+        private int size;
+
+        void add(int node)
+        {
+            if (size == nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size++] = node;
+        }
+
+        /**
+         * Removes the given shape number and all greater ones.
+         */
+        void truncate(int node)
+        {
+            while (size > 0 && nodes[size - 1] >= node)
+            {
+                size--;
+            }
+        }
+
+        int[] toArray()
+        {
+            return Arrays.copyOf(nodes, size);
+        }
+    }
+}
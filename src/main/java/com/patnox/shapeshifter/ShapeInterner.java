@@ -0,0 +1,193 @@
+package com.patnox.shapeshifter;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * A table of canonical shapes, used to share identical subtrees. Documents tend to repeat the same
+ * subtrees, such as <code>(INK[1[35]](CHARLIE))</code>, many times. Interning each completed shape
+ * returns one shared instance per distinct subtree, so a parsed document becomes a DAG whose size is
+ * proportional to its distinct structure, and identical subtrees can be compared with
+ * <code>==</code>.
+ * <p>
+ * Shapes must be interned bottom-up: the children of a shape must be canonical before the shape is
+ * interned, as done by {@link ShapesHandlerImpl#setShapeInterner(ShapeInterner)}. Two shapes are
+ * then identical if they are of the same class, have equal labels and the same child instances in
+ * the same order, so a lookup never descends into the children.
+ * </p>
+ * <p>
+ * The table only holds weak references, so canonical shapes that are no longer used by any document
+ * are reclaimed by the garbage collector. Canonical shapes are shared, so they are frozen, see
+ * {@link Shape#freeze()}. An interner can be shared between threads.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeInterner
+{
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ReferenceQueue<Shape> queue = new ReferenceQueue<>();
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Returns the canonical shape identical to the given shape. If there is none yet, the given shape
+     * is frozen and becomes the canonical one.
+     *
+     * @param shape
+     *          a circle or square whose children are canonical
+     * @return the canonical shape
+     */
+    public synchronized Shape intern(Shape shape)
+    {
+        expunge();
+        int hash = hash(shape);
+        int slot = hash & (table.length - 1);
+        for (Entry entry = table[slot]; entry != null; entry = entry.next)
+        {
+            Shape canonical = entry.get();
+            if (entry.hash == hash && canonical != null && isIdentical(canonical, shape))
+            {
+                return canonical;
+            }
+        }
+        shape.freeze();
+        table[slot] = new Entry(shape, hash, table[slot], queue);
+        if (++size > table.length - (table.length >>> 2))
+        {
+            resize();
+        }
+        return shape;
+    }
+
+    /**
+     * Returns the number of canonical shapes in the table, including some that may already have been
+     * reclaimed.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size()
+    {
+        expunge();
+        return size;
+    }
+
+    private static int hash(Shape shape)
+    {
+        int hash;
+        if (shape instanceof Square)
+        {
+            Square square = (Square)shape;
+            hash = square.isNumeric() ? Long.hashCode(square.getNumber()) : square.getLabel().hashCode() * 17;
+        }
+        else
+        {
+            hash = 31 * shape.getClass().hashCode() + shape.getLabel().hashCode();
+        }
+        ArrayList<Shape> children = shape.getChildren();
+        for (int i = 0; i < children.size(); i++)
+        {
+            hash = 31 * hash + System.identityHashCode(children.get(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isIdentical(Shape canonical, Shape shape)
+    {
+        if (canonical.getClass() != shape.getClass())
+        {
+            return false;
+        }
+        if (shape instanceof Square)
+        {
+            Square square = (Square)shape;
+            Square other = (Square)canonical;
+            if (square.isNumeric() != other.isNumeric()
+                || (square.isNumeric() ? square.getNumber() != other.getNumber()
+                    : !square.getLabel().equals(other.getLabel())))
+            {
+                return false;
+            }
+        }
+        else if (!shape.getLabel().equals(canonical.getLabel()))
+        {
+            return false;
+        }
+        ArrayList<Shape> children = shape.getChildren();
+        ArrayList<Shape> canonicalChildren = canonical.getChildren();
+        if (children.size() != canonicalChildren.size())
+        {
+            return false;
+        }
+        for (int i = 0; i < children.size(); i++)
+        {
+            if (children.get(i) != canonicalChildren.get(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entries of reclaimed shapes.
+     */
+    private void expunge()
+    {
+        Object reference;
+        while ((reference = queue.poll()) != null)
+        {
+            Entry entry = (Entry)reference;
+            int slot = entry.hash & (table.length - 1);
+            Entry previous = null;
+            for (Entry next = table[slot]; next != null; previous = next, next = next.next)
+            {
+                if (next == entry)
+                {
+                    if (previous == null)
+                    {
+                        table[slot] = entry.next;
+                    }
+                    else
+                    {
+                        previous.next = entry.next;
+                    }
+                    size--;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void resize()
+    {
+        Entry[] resized = new Entry[table.length * 2];
+        for (Entry entry : table)
+        {
+            while (entry != null)
+            {
+                Entry next = entry.next;
+                int slot = entry.hash & (resized.length - 1);
+                entry.next = resized[slot];
+                resized[slot] = entry;
+                entry = next;
+            }
+        }
+        table = resized;
+    }
+
+    private static final class Entry extends WeakReference<Shape>
+    {
+        final int hash;
+        Entry next;
+
+        Entry(Shape shape, int hash, Entry next, ReferenceQueue<Shape> queue)
+        {
+            super(shape, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+}
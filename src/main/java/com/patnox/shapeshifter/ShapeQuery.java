@@ -0,0 +1,560 @@
+package com.patnox.shapeshifter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A compiled path query over shapes. A query selects shapes by the labels and kinds of the shapes
+ * on their path from the top level, and runs either on the parser events, without building any
+ * shapes, or on a shape tree. Example:
+ *
+ * <pre>
+ * ShapeQuery query = ShapeQuery.compile("(BALL)//[*]");
+ * List&lt;ShapeQuery.Match&gt; matches = query.find(text);
+ * </pre>
+ * <p>
+ * A query is a sequence of steps separated by <code>/</code>, for an inner shape of the shape
+ * matched by the previous step, or <code>//</code>, for any shape nested within it. The first step
+ * matches top-level shapes, or any shape if the query starts with <code>//</code>. A step is one
+ * of:
+ * </p>
+ * <ul>
+ * <li><code>(LABEL)</code>, a circle with the given label, or <code>(*)</code>, any circle,</li>
+ * <li><code>[123]</code>, a square with the given label, or <code>[*]</code>, any square,</li>
+ * <li><code>*</code>, any shape.</li>
+ * </ul>
+ * <p>
+ * For instance, <code>//(INK)//[*]</code> selects all squares within any circle labelled
+ * <code>INK</code>, and <code>*&#47;*&#47;*</code> all shapes at depth 3.
+ * </p>
+ * <p>
+ * A query is compiled into a state machine with one bit per step, so it may have at most 63 steps.
+ * While matching events, the only state is one word per open shape. Shapes below which nothing can
+ * match anymore are skipped without reading their labels, so their contents are only checked for
+ * balanced brackets, see {@link ShapesHandler#skipSquareChildren(Object)}. A compiled query is
+ * immutable and can be shared between threads.
+ * </p>
+ *
+ * @author patnox
+ */
+public final class ShapeQuery
+{
+    private static final int MAX_STEPS = 63;
+    private static final byte ANY = 0;
+    private static final byte CIRCLE = 1;
+    private static final byte SQUARE = 2;
+    private static final int INITIAL_STACK_SIZE = 32;
+    // set by advance() if the last step matched, steps only use the lower 63 bits
+    private static final long MATCHED = Long.MIN_VALUE;
+
+    private final String expression;
+    private final byte[] kinds;
+    private final String[] labels;
+    private final long[] numbers;
+    private final long descendants;
+    private final int last;
+
+    private ShapeQuery(String expression, byte[] kinds, String[] labels, long descendants)
+    {
+        this.expression = expression;
+        this.kinds = kinds;
+        this.labels = labels;
+        this.descendants = descendants;
+        this.last = kinds.length - 1;
+        numbers = new long[kinds.length];
+        for (int i = 0; i < kinds.length; i++)
+        {
+            Square square = labels[i] != null && kinds[i] == SQUARE ? new Square() : null;
+            if (square != null)
+            {
+                square.setLabel(labels[i]);
+                numbers[i] = square.isNumeric() ? square.getNumber() : -1;
+            }
+        }
+    }
+
+    /**
+     * Compiles the given path expression.
+     *
+     * @param expression
+     *          the query, see {@link ShapeQuery}
+     * @return the compiled query
+     * @throws IllegalArgumentException
+     *           if the expression is not a valid query
+     */
+    public static ShapeQuery compile(String expression)
+    {
+        if (expression == null)
+        {
+            throw new NullPointerException("expression is null");
+        }
+        String path = expression.trim();
+        ArrayList<String> labels = new ArrayList<>();
+        byte[] kinds = new byte[MAX_STEPS];
+        long descendants = 0;
+        int position = 0;
+        while (true)
+        {
+            boolean descendant = false;
+            if (path.startsWith("//", position))
+            {
+                descendant = true;
+                position += 2;
+            }
+            else if (path.startsWith("/", position))
+            {
+                position++;
+            }
+            else if (position > 0 || path.isEmpty())
+            {
+                throw invalid(expression, position);
+            }
+            if (labels.size() == MAX_STEPS)
+            {
+                throw new IllegalArgumentException("Query has more than " + MAX_STEPS + " steps: " + expression);
+            }
+            int step = labels.size();
+            if (descendant)
+            {
+                descendants |= 1L << step;
+            }
+            if (path.startsWith("*", position))
+            {
+                kinds[step] = ANY;
+                labels.add(null);
+                position++;
+            }
+            else if (path.startsWith("(", position) || path.startsWith("[", position))
+            {
+                boolean square = path.charAt(position) == '[';
+                int end = path.indexOf(square ? ']' : ')', position);
+                if (end < 0)
+                {
+                    throw invalid(expression, position);
+                }
+                String label = path.substring(position + 1, end);
+                if (!label.equals("*") && !isLabel(label, square))
+                {
+                    throw invalid(expression, position + 1);
+                }
+                kinds[step] = square ? SQUARE : CIRCLE;
+                labels.add(label.equals("*") ? null : label);
+                position = end + 1;
+            }
+            else
+            {
+                throw invalid(expression, position);
+            }
+            if (position == path.length())
+            {
+                break;
+            }
+        }
+        return new ShapeQuery(expression, Arrays.copyOf(kinds, labels.size()), labels.toArray(new String[0]),
+            descendants);
+    }
+
+    private static boolean isLabel(String label, boolean square)
+    {
+        if (label.isEmpty())
+        {
+            return false;
+        }
+        for (int i = 0; i < label.length(); i++)
+        {
+            char c = label.charAt(i);
+            if (square ? c < '0' || c > '9' : c < 'A' || c > 'Z')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static IllegalArgumentException invalid(String expression, int position)
+    {
+        return new IllegalArgumentException("Invalid query at " + position + ": " + expression);
+    }
+
+    /**
+     * Parses the given string and returns all matching shapes, in the order in which they close.
+     * <p>
+     * Subtrees in which nothing can match are skipped and only checked for balanced brackets, so
+     * invalid labels or misplaced circles inside them are not reported; for instance,
+     * <code>(X(b))(BALL)</code> yields <code>(BALL)</code> for the query <code>(BALL)</code>. Input
+     * that must be rejected when it is not valid TEXT can be checked first with
+     * {@link Parser#validate(String)}.
+     * </p>
+     *
+     * @param string
+     *          the input string
+     * @return the matches
+     * @throws ParseException
+     *           if the brackets are not balanced, or the parts of the input that are not skipped are
+     *           not valid TEXT
+     */
+    public List<Match> find(String string)
+    {
+        ArrayList<Match> matches = new ArrayList<>();
+        new Parser(matcher(matches::add)).parse(string);
+        return matches;
+    }
+
+    /**
+     * Returns a handler that matches this query against the parser events and passes each matching
+     * shape to the given consumer when it closes. Like {@link #find(String)}, the handler skips
+     * subtrees in which nothing can match, so the parser does not validate them beyond balanced
+     * brackets. The handler can be used for one parse at a time; after a
+     * <code>ParseException</code>, {@link Parser#reset()} must be called before it is reused.
+     *
+     * @param matches
+     *          receives the matches
+     * @return a handler for a {@link Parser}
+     */
+    public Matcher matcher(Consumer<? super Match> matches)
+    {
+        if (matches == null)
+        {
+            throw new NullPointerException("matches is null");
+        }
+        return new Matcher(this, matches);
+    }
+
+    /**
+     * Returns all shapes below the given root that match this query, in document order. The children
+     * of the root are the top-level shapes. Subtrees below which nothing can match are not visited,
+     * so lazy shapes, see {@link LazyShapes}, are only materialized where needed.
+     *
+     * @param root
+     *          the root of the tree, e.g. a {@link ShapesContainer}
+     * @return the matching shapes
+     */
+    public List<Shape> select(Shape root)
+    {
+        if (root == null)
+        {
+            throw new NullPointerException("root is null");
+        }
+        ArrayList<Shape> selected = new ArrayList<>();
+        ArrayList<Shape> shapes = new ArrayList<>();
+        long[] states = new long[INITIAL_STACK_SIZE];
+        int top = 0;
+        ArrayList<Shape> children = root.getChildren();
+        for (int i = children.size() - 1; i >= 0; i--)
+        {
+            shapes.add(children.get(i));
+            states = push(states, top++, 1L);
+        }
+        while (top > 0)
+        {
+            Shape shape = shapes.remove(--top);
+            long parentStates = states[top];
+            long next;
+            boolean matched;
+            if (shape instanceof Square && ((Square)shape).isNumeric())
+            {
+                next = advance(parentStates, SQUARE, null, ((Square)shape).getNumber());
+            }
+            else
+            {
+                next = advance(parentStates, shape instanceof Square ? SQUARE : CIRCLE, shape.getLabel(), -1);
+            }
+            matched = (next & MATCHED) != 0;
+            next &= ~MATCHED;
+            if (matched)
+            {
+                selected.add(shape);
+            }
+            if (next != 0)
+            {
+                children = shape.getChildren();
+                for (int i = children.size() - 1; i >= 0; i--)
+                {
+                    shapes.add(children.get(i));
+                    states = push(states, top++, next);
+                }
+            }
+        }
+        return selected;
+    }
+
+    private static long[] push(long[] states, int top, long value)
+    {
+        if (top == states.length)
+        {
+            states = Arrays.copyOf(states, top * 2);
+        }
+        states[top] = value;
+        return states;
+    }
+
+    /**
+     * Returns the states for the inner shapes of a shape, given the states of its parent, and sets
+     * {@link #MATCHED} if the shape matches the query. The label is given either as text or, for
+     * numeric squares, as a number with <code>label</code> set to <code>null</code>.
+     */
+    private long advance(long parentStates, byte kind, CharSequence label, long number)
+    {
+        long next = parentStates & descendants;
+        for (long bits = parentStates; bits != 0; bits &= bits - 1)
+        {
+            int step = Long.numberOfTrailingZeros(bits);
+            if (matches(step, kind, label, number))
+            {
+                next |= step == last ? MATCHED : 1L << (step + 1);
+            }
+        }
+        return next;
+    }
+
+    private boolean matches(int step, byte kind, CharSequence label, long number)
+    {
+        if (kinds[step] != ANY && kinds[step] != kind)
+        {
+            return false;
+        }
+        String expected = labels[step];
+        if (expected == null)
+        {
+            return true;
+        }
+        if (label == null)
+        {
+            return numbers[step] == number;
+        }
+        if (expected.length() != label.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++)
+        {
+            if (expected.charAt(i) != label.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+
+    /**
+     * A shape matched by a query on the parser events.
+     */
+    public static final class Match
+    {
+        private final boolean square;
+        private final String label;
+        private final int depth;
+        private final int start;
+        private final int end;
+
+        Match(boolean square, String label, int depth, int start, int end)
+        {
+            this.square = square;
+            this.label = label;
+            this.depth = depth;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Returns whether the matched shape is a square.
+         *
+         * @return <code>true</code> for a square, <code>false</code> for a circle
+         */
+        public boolean isSquare()
+        {
+            return square;
+        }
+
+        /**
+         * Returns the label of the matched shape.
+         *
+         * @return the label
+         */
+        public String getLabel()
+        {
+            return label;
+        }
+
+        /**
+         * Returns the nesting depth of the matched shape, 1 for top-level shapes.
+         *
+         * @return the depth
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        /**
+         * Returns the offset of the opening bracket of the matched shape.
+         *
+         * @return the start offset
+         */
+        public int getStart()
+        {
+            return start;
+        }
+
+        /**
+         * Returns the offset that follows the closing bracket of the matched shape.
+         *
+         * @return the end offset
+         */
+        public int getEnd()
+        {
+            return end;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (square ? "[" : "(") + label + (square ? "]" : ")") + " at " + start + "-" + end + ", depth " + depth;
+        }
+    }
+
+    /**
+     * Matches a query against parser events. Only the state of the open shapes is kept, and labels
+     * are only turned into strings for matching shapes.
+     */
+    public static final class Matcher extends ShapesHandler<Object, Object>
+    {
+        private final ShapeQuery query;
+        private final Consumer<? super Match> matches;
+        private long[] states = new long[INITIAL_STACK_SIZE];
+        private int[] starts = new int[INITIAL_STACK_SIZE];
+        private String[] matched = new String[INITIAL_STACK_SIZE];
+        private int depth;
+
+        Matcher(ShapeQuery query, Consumer<? super Match> matches)
+        {
+            this.query = query;
+            this.matches = matches;
+        }
+
+        @Override
+        public Object startSquare()
+        {
+            open();
+            return null;
+        }
+
+        @Override
+        public Object startCircle()
+        {
+            open();
+            return null;
+        }
+
+        @Override
+        public void endSquareLabel(Object square, CharSequence label)
+        {
+            label(SQUARE, label, -1);
+        }
+
+        @Override
+        public void endSquareLabel(Object square, String name)
+        {
+            label(SQUARE, name, -1);
+        }
+
+        @Override
+        public void endSquareLabel(Object square, long label)
+        {
+            label(SQUARE, null, label);
+        }
+
+        @Override
+        public void endCircleLabel(Object circle, CharSequence label)
+        {
+            label(CIRCLE, label, -1);
+        }
+
+        @Override
+        public void endCircleLabel(Object circle, String name)
+        {
+            label(CIRCLE, name, -1);
+        }
+
+        @Override
+        protected boolean skipSquareChildren(Object square)
+        {
+            return states[depth] == 0;
+        }
+
+        @Override
+        protected boolean skipCircleChildren(Object circle)
+        {
+            return states[depth] == 0;
+        }
+
+        @Override
+        public void endSquare(Object square)
+        {
+            close(true);
+        }
+
+        @Override
+        public void endCircle(Object circle)
+        {
+            close(false);
+        }
+
+        @Override
+        protected boolean isChildLabelUsed()
+        {
+            return false;
+        }
+
+        @Override
+        protected void reset()
+        {
+            Arrays.fill(matched, 0, depth + 1, null);
+            depth = 0;
+        }
+
+        private void open()
+        {
+            if (depth == 0)
+            {
+                states[0] = 1L;
+            }
+            if (++depth == states.length)
+            {
+                states = Arrays.copyOf(states, depth * 2);
+                starts = Arrays.copyOf(starts, depth * 2);
+                matched = Arrays.copyOf(matched, depth * 2);
+            }
+            starts[depth] = parser.getOffset();
+        }
+
+        private void label(byte kind, CharSequence label, long number)
+        {
+            long next = query.advance(states[depth - 1], kind, label, number);
+            if ((next & MATCHED) != 0)
+            {
+                matched[depth] = label != null ? label.toString() : Long.toString(number);
+            }
+            states[depth] = next & ~MATCHED;
+        }
+
+        private void close(boolean square)
+        {
+            String label = matched[depth];
+            if (label != null)
+            {
+                matched[depth] = null;
+                matches.accept(new Match(square, label, depth, starts[depth], parser.getOffset()));
+            }
+            depth--;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.patnox.shapeshifter;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads shape trees written by {@link ShapeWriter}. The reader works on a stream, or on a buffer
+ * such as a memory-mapped file, see {@link #read(Path)}. Loading reads the data once from start to
+ * end and creates the same {@link Circle} and {@link Square} objects that
+ * {@link ShapesHandlerImpl} creates, without scanning labels character by character. Example:
+ *
+ * <pre>
+ * ShapesContainer shapes = ShapeReader.read(path);
+ * </pre>
+ * <p>
+ * Top-level shapes can also be read one by one with {@link #readShape()}. Data that does not follow
+ * the format is rejected with an <code>IOException</code>. A reader is not thread-safe.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeReader implements Closeable
+{
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INITIAL_STACK_SIZE = 32;
+
+    private final InputStream in;
+    private ByteBuffer input;
+    private final ArrayList<String> labels = new ArrayList<>();
+    private byte[] text = new byte[64];
+    private Shape[] shapes = new Shape[INITIAL_STACK_SIZE];
+    private int[] remaining = new int[INITIAL_STACK_SIZE];
+    private int childCount;
+    private boolean started;
+    private boolean ended;
+
+    /**
+     * Creates a reader from the given stream.
+     *
+     * @param in
+     *          the stream to read from, which is closed by {@link #close()}
+     */
+    public ShapeReader(InputStream in)
+    {
+        if (in == null)
+        {
+            throw new NullPointerException("in is null");
+        }
+        this.in = in;
+        input = ByteBuffer.allocate(BUFFER_SIZE);
+        input.limit(0);
+    }
+
+    /**
+     * Creates a reader from the remaining bytes of the given buffer, e.g. a
+     * <code>MappedByteBuffer</code>. The position of the buffer is advanced as shapes are read.
+     *
+     * @param input
+     *          the buffer to read from
+     */
+    public ShapeReader(ByteBuffer input)
+    {
+        if (input == null)
+        {
+            throw new NullPointerException("input is null");
+        }
+        this.in = null;
+        this.input = input;
+    }
+
+    /**
+     * Reads all shapes from the given file, which is mapped into memory.
+     *
+     * @param file
+     *          a file written by {@link ShapeWriter}
+     * @return a container with all top-level shapes
+     * @throws IOException
+     *           if reading fails or the file is not shape data
+     */
+    public static ShapesContainer read(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                try (ShapeReader reader = new ShapeReader(Files.newInputStream(file)))
+                {
+                    return reader.readAll();
+                }
+            }
+            return new ShapeReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)).readAll();
+        }
+    }
+
+    /**
+     * Reads all remaining top-level shapes up to the end tag.
+     *
+     * @return a container with the shapes
+     * @throws IOException
+     *           if reading fails or the input is not shape data
+     */
+    public ShapesContainer readAll() throws IOException
+    {
+        ArrayList<Shape> children = new ArrayList<>();
+        Shape shape;
+        while ((shape = readShape()) != null)
+        {
+            children.add(shape);
+        }
+        return new ShapesContainer(children);
+    }
+
+    /**
+     * Reads the next top-level shape with all its descendants.
+     *
+     * @return the shape, or <code>null</code> after the last shape
+     * @throws IOException
+     *           if reading fails or the input is not shape data
+     */
+    public Shape readShape() throws IOException
+    {
+        if (!started)
+        {
+            started = true;
+            for (byte magic : ShapeWriter.MAGIC)
+            {
+                if (readByte() != (magic & 0xFF))
+                {
+                    throw new IOException("Not shape data");
+                }
+            }
+        }
+        if (ended)
+        {
+            return null;
+        }
+        Shape root = readNode();
+        if (root == null)
+        {
+            ended = true;
+            return null;
+        }
+        if (childCount == 0)
+        {
+            return root;
+        }
+        int depth = 0;
+        shapes[0] = root;
+        remaining[0] = childCount;
+        while (depth >= 0)
+        {
+            if (remaining[depth] == 0)
+            {
+                shapes[depth--] = null;
+                continue;
+            }
+            remaining[depth]--;
+            Shape parent = shapes[depth];
+            Shape child = readNode();
+            if (child == null || (parent instanceof Square && !(child instanceof Square)))
+            {
+                throw new IOException("Corrupt shape data");
+            }
+            parent.getChildren().add(child);
+            if (childCount > 0)
+            {
+                if (++depth == shapes.length)
+                {
+                    shapes = Arrays.copyOf(shapes, depth * 2);
+                    remaining = Arrays.copyOf(remaining, depth * 2);
+                }
+                shapes[depth] = child;
+                remaining[depth] = childCount;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Closes the underlying stream, if any.
+     *
+     * @throws IOException
+     *           if closing fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (in != null)
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads one shape without its children and sets <code>childCount</code>, or returns
+     * <code>null</code> at the end tag.
+     */
+    private Shape readNode() throws IOException
+    {
+        long tag = readVarint();
+        long count = tag >>> ShapeWriter.KIND_BITS;
+        if (count > Integer.MAX_VALUE)
+        {
+            throw new IOException("Corrupt shape data");
+        }
+        childCount = (int)count;
+        // the children list grows as children are read, so corrupt counts cannot exhaust memory
+        ArrayList<Shape> children = new ArrayList<>(Math.min(childCount, 16));
+        switch ((int)tag & ((1 << ShapeWriter.KIND_BITS) - 1))
+        {
+            case ShapeWriter.END:
+                return null;
+            case ShapeWriter.CIRCLE:
+            {
+                String label = readText();
+                if (labels.size() < ShapeWriter.MAX_LABELS)
+                {
+                    labels.add(label);
+                }
+                return new Circle(label, children);
+            }
+            case ShapeWriter.CIRCLE_REFERENCE:
+            {
+                long index = readVarint();
+                if (index >= labels.size())
+                {
+                    throw new IOException("Corrupt shape data");
+                }
+                return new Circle(labels.get((int)index), children);
+            }
+            case ShapeWriter.SQUARE_NUMBER:
+            {
+                long value = readVarint();
+                Square square = new Square((value >>> 1) ^ -(value & 1));
+                square.setChildren(children);
+                return square;
+            }
+            case ShapeWriter.SQUARE_TEXT:
+            {
+                Square square = new Square();
+                square.setLabel(readText());
+                square.setChildren(children);
+                return square;
+            }
+            default:
+                throw new IOException("Corrupt shape data");
+        }
+    }
+
+    private String readText() throws IOException
+    {
+        long length = readVarint();
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("Corrupt shape data");
+        }
+        int size = (int)length;
+        if (input.hasArray() && input.remaining() >= size)
+        {
+            String label = new String(input.array(), input.arrayOffset() + input.position(), size,
+                StandardCharsets.UTF_8);
+            input.position(input.position() + size);
+            return label;
+        }
+        if (text.length < size)
+        {
+            text = new byte[Math.max(size, text.length * 2)];
+        }
+        int read = 0;
+        while (read < size)
+        {
+            if (!input.hasRemaining() && !fill())
+            {
+                throw new EOFException("Unexpected end of shape data");
+            }
+            int chunk = Math.min(size - read, input.remaining());
+            input.get(text, read, chunk);
+            read += chunk;
+        }
+        return new String(text, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private long readVarint() throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if (b < 0x80)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt shape data");
+    }
+
+    private int readByte() throws IOException
+    {
+        if (!input.hasRemaining() && !fill())
+        {
+            throw new EOFException("Unexpected end of shape data");
+        }
+        return input.get() & 0xFF;
+    }
+
+    /**
+     * Refills the buffer from the stream. Returns <code>false</code> at the end of the input.
+     */
+    private boolean fill() throws IOException
+    {
+        if (in == null)
+        {
+            return false;
+        }
+        input.clear();
+        int read = in.read(input.array(), 0, input.capacity());
+        input.limit(Math.max(read, 0));
+        return read > 0;
+    }
+}
@@ -0,0 +1,267 @@
+package com.patnox.shapeshifter;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes shape trees in a compact binary format, which {@link ShapeReader} loads much faster than
+ * {@link Parser} parses the TEXT. Top-level shapes are written one by one as they are passed to
+ * {@link #write(Shape)}, so a stream of any length can be written with little memory. Example:
+ *
+ * <pre>
+ * try (ShapeWriter writer = new ShapeWriter(Files.newOutputStream(path))) {
+ *     writer.writeAll(shapes);
+ * }
+ * </pre>
+ * <p>
+ * The format starts with the bytes <code>SHP</code> and a version byte, followed by the shapes in
+ * pre-order and an end tag. Each shape starts with a varint tag that holds its kind in the low three
+ * bits and its number of children above them:
+ * </p>
+ * <ul>
+ * <li>a circle with a new label, followed by the length and UTF-8 bytes of the label, which is added
+ * to the label table,</li>
+ * <li>a circle with a label from the table, followed by the varint index of the label,</li>
+ * <li>a square with a numeric label, see {@link Square#isNumeric()}, followed by the zigzag varint
+ * number,</li>
+ * <li>a square with a text label, followed by the length and UTF-8 bytes of the label.</li>
+ * </ul>
+ * <p>
+ * The label table holds up to 65536 distinct circle labels. A writer is not thread-safe.
+ * </p>
+ *
+ * @author patnox
+ */
+public class ShapeWriter implements Closeable, Flushable
+{
+    static final byte[] MAGIC = { 'S', 'H', 'P', 1 };
+    static final int END = 0;
+    static final int CIRCLE = 1;
+    static final int CIRCLE_REFERENCE = 2;
+    static final int SQUARE_NUMBER = 3;
+    static final int SQUARE_TEXT = 4;
+    static final int KIND_BITS = 3;
+    static final int MAX_LABELS = 1 << 16;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INITIAL_STACK_SIZE = 32;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private final HashMap<String, Integer> labels = new HashMap<>();
+    private Shape[] shapes = new Shape[INITIAL_STACK_SIZE];
+    private int[] nextChild = new int[INITIAL_STACK_SIZE];
+    private boolean closed;
+
+    /**
+     * Creates a writer to the given stream and writes the header.
+     *
+     * @param out
+     *          the stream to write to, which is closed by {@link #close()}
+     */
+    public ShapeWriter(OutputStream out)
+    {
+        if (out == null)
+        {
+            throw new NullPointerException("out is null");
+        }
+        this.out = out;
+        System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+        position = MAGIC.length;
+    }
+
+    /**
+     * Writes a top-level shape with all its descendants.
+     *
+     * @param shape
+     *          a circle or square
+     * @throws IOException
+     *           if writing fails
+     * @throws IllegalArgumentException
+     *           if the tree contains shapes other than circles and squares
+     */
+    public void write(Shape shape) throws IOException
+    {
+        if (shape == null)
+        {
+            throw new NullPointerException("shape is null");
+        }
+        if (closed)
+        {
+            throw new IllegalStateException("writer is closed");
+        }
+        writeNode(shape);
+        if (shape.getChildren().isEmpty())
+        {
+            return;
+        }
+        int depth = 0;
+        shapes[0] = shape;
+        nextChild[0] = 0;
+        while (depth >= 0)
+        {
+            Shape parent = shapes[depth];
+            if (nextChild[depth] == parent.getChildren().size())
+            {
+                shapes[depth--] = null;
+                continue;
+            }
+            Shape child = parent.getChildren().get(nextChild[depth]++);
+            writeNode(child);
+            if (!child.getChildren().isEmpty())
+            {
+                if (++depth == shapes.length)
+                {
+                    shapes = Arrays.copyOf(shapes, depth * 2);
+                    nextChild = Arrays.copyOf(nextChild, depth * 2);
+                }
+                shapes[depth] = child;
+                nextChild[depth] = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes all children of the given container as top-level shapes.
+     *
+     * @param container
+     *          the top-level shapes, e.g. from {@link ShapesHandlerImpl#getParent()}
+     * @throws IOException
+     *           if writing fails
+     */
+    public void writeAll(ShapesContainer container) throws IOException
+    {
+        if (container == null)
+        {
+            throw new NullPointerException("container is null");
+        }
+        for (Shape shape : container.getChildren())
+        {
+            write(shape);
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the underlying stream and flushes it.
+     *
+     * @throws IOException
+     *           if writing fails
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Writes the end tag and closes the underlying stream.
+     *
+     * @throws IOException
+     *           if writing fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            writeVarint(END);
+            drain();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void writeNode(Shape shape) throws IOException
+    {
+        long count = (long)shape.getChildren().size() << KIND_BITS;
+        if (shape instanceof Circle)
+        {
+            String label = shape.getLabel();
+            Integer index = labels.get(label);
+            if (index != null)
+            {
+                writeVarint(count | CIRCLE_REFERENCE);
+                writeVarint(index);
+            }
+            else
+            {
+                if (labels.size() < MAX_LABELS)
+                {
+                    labels.put(label, labels.size());
+                }
+                writeVarint(count | CIRCLE);
+                writeText(label);
+            }
+        }
+        else if (shape instanceof Square)
+        {
+            Square square = (Square)shape;
+            if (square.isNumeric())
+            {
+                long number = square.getNumber();
+                writeVarint(count | SQUARE_NUMBER);
+                writeVarint((number << 1) ^ (number >> 63));
+            }
+            else
+            {
+                writeVarint(count | SQUARE_TEXT);
+                writeText(square.getLabel());
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Not a circle or square: " + shape.getClass().getName());
+        }
+    }
+
+    private void writeText(String text) throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        if (bytes.length > buffer.length - position)
+        {
+            drain();
+            if (bytes.length > buffer.length)
+            {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeVarint(long value) throws IOException
+    {
+        if (buffer.length - position < 10)
+        {
+            drain();
+        }
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer[position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte)value;
+    }
+
+    private void drain() throws IOException
+    {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -1,5 +1,7 @@
 package com.patnox.shapeshifter;
 
+import java.nio.ByteBuffer;
+
 /**
  * A handler for parser events. Instances of this class can be given to a {@link Parser}. The
  * parser will then call the methods of the given handler while reading the input.
@@ -95,6 +97,69 @@ public abstract class ShapesHandler<A, O>
     public void endSquareLabel(O square, String name) {
     }
 
+    /**
+     * Indicates the end of a SQUARE label in the TEXT input. The label is given as a view into the
+     * parser buffer, which is only valid during this call. Handlers that keep the label must copy it,
+     * e.g. with <code>toString()</code> or {@link LabelPool#intern(CharSequence)}.
+     * <p>
+     * The default implementation calls {@link #endSquareLabel(Object, String)} with a copy of the label.
+     * Subclasses can override this method to avoid creating a <code>String</code> for labels they do
+     * not keep.
+     * </p>
+     *
+     * @param square
+     *          the object handler returned from {@link #startSquare()}, or null if not provided
+     * @param label
+     *          a view of the parsed label
+     */
+    public void endSquareLabel(O square, CharSequence label) {
+        endSquareLabel(square, label.toString());
+    }
+
+    /**
+     * Indicates the end of a numeric SQUARE label in the TEXT input. The parser reports a label this
+     * way if it has no leading zeros and fits into a <code>long</code>, so that no label object needs
+     * to be created, but only to handlers that override this method. Other labels, and all labels for
+     * handlers that do not override it, are reported as text, see
+     * {@link #endSquareLabel(Object, CharSequence)} and
+     * {@link #endSquareLabel(Object, ByteBuffer, int, int)}.
+     * <p>
+     * The default implementation calls {@link #endSquareLabel(Object, CharSequence)} with the decimal
+     * representation of the label.
+     * </p>
+     *
+     * @param square
+     *          the object handler returned from {@link #startSquare()}, or null if not provided
+     * @param label
+     *          the parsed label, will be &gt;= 0
+     */
+    public void endSquareLabel(O square, long label) {
+        endSquareLabel(square, (CharSequence)Long.toString(label));
+    }
+
+    /**
+     * Indicates the end of a SQUARE label when parsing bytes, see {@link Parser#parse(ByteBuffer)}.
+     * The label is given as a range of ASCII bytes in the parsed buffer, which is only valid during
+     * this call. Numeric labels are reported here too, unless the handler overrides
+     * {@link #endSquareLabel(Object, long)}.
+     * <p>
+     * The default implementation calls {@link #endSquareLabel(Object, CharSequence)} with a view of
+     * the label bytes.
+     * </p>
+     *
+     * @param square
+     *          the object handler returned from {@link #startSquare()}, or null if not provided
+     * @param source
+     *          the buffer that holds the label
+     * @param offset
+     *          the absolute index of the first label byte in <code>source</code>
+     * @param length
+     *          the number of label bytes
+     */
+    public void endSquareLabel(O square, ByteBuffer source, int offset, int length) {
+        endSquareLabel(square, parser.labelView(source, offset, length));
+    }
+
     /**
      * Indicates the beginning of the name of a SQUARE member in the TEXT input. This method will be
      * called when reading the opening quote character ('&quot;') of the member name.
@@ -172,6 +237,47 @@ public abstract class ShapesHandler<A, O>
     public void endCircleLabel(A circle, String name) {
     }
 
+    /**
+     * Indicates the end of a CIRCLE label in the TEXT input. The label is given as a view into the
+     * parser buffer, which is only valid during this call. Handlers that keep the label must copy it,
+     * e.g. with <code>toString()</code> or {@link LabelPool#intern(CharSequence)}.
+     * <p>
+     * The default implementation calls {@link #endCircleLabel(Object, String)} with a copy of the label.
+     * Subclasses can override this method to avoid creating a <code>String</code> for labels they do
+     * not keep.
+     * </p>
+     *
+     * @param circle
+     *          the object handler returned from {@link #startCircle()}, or null if not provided
+     * @param label
+     *          a view of the parsed label
+     */
+    public void endCircleLabel(A circle, CharSequence label) {
+        endCircleLabel(circle, label.toString());
+    }
+
+    /**
+     * Indicates the end of a CIRCLE label when parsing bytes, see {@link Parser#parse(ByteBuffer)}.
+     * The label is given as a range of ASCII bytes in the parsed buffer, which is only valid during
+     * this call.
+     * <p>
+     * The default implementation calls {@link #endCircleLabel(Object, CharSequence)} with a view of
+     * the label bytes.
+     * </p>
+     *
+     * @param circle
+     *          the object handler returned from {@link #startCircle()}, or null if not provided
+     * @param source
+     *          the buffer that holds the label
+     * @param offset
+     *          the absolute index of the first label byte in <code>source</code>
+     * @param length
+     *          the number of label bytes
+     */
+    public void endCircleLabel(A circle, ByteBuffer source, int offset, int length) {
+        endCircleLabel(circle, parser.labelView(source, offset, length));
+    }
+
     /**
      * Indicates the beginning of the child of a CIRCLE member in the TEXT input. This method will be
      * called when reading the opening quote character ('&quot;') of the member name.
@@ -198,8 +304,90 @@ public abstract class ShapesHandler<A, O>
     public void endCircleChild(A circle, String name) {
     }
 
+    /**
+     * Returns whether the SQUARE at the current location should be skipped. This method is called
+     * when reading the opening bracket, before any other method for the shape, including
+     * {@link #startSquareChild(Object, String)} of its parent.
+     * <p>
+     * A skipped shape is fast-forwarded to its matching closing bracket: its labels are not captured
+     * and no methods are called for it or any of its inner shapes. The skipped text is only checked
+     * for balanced brackets, not for valid labels.
+     * </p>
+     *
+     * @return <code>true</code> to skip the shape, the default is <code>false</code>
+     */
+    protected boolean skipSquare() {
+        return false;
+    }
+
+    /**
+     * Returns whether the inner shapes of a SQUARE should be skipped. This method is called after
+     * the label of the square has been reported. The inner shapes are then fast-forwarded as in
+     * {@link #skipSquare()}, and {@link #endSquare(Object)} is called next.
+     *
+     * @param square
+     *          the object handler returned from {@link #startSquare()}, or null if not provided
+     * @return <code>true</code> to skip the inner shapes, the default is <code>false</code>
+     */
+    protected boolean skipSquareChildren(O square) {
+        return false;
+    }
+
+    /**
+     * Returns whether the CIRCLE at the current location should be skipped, see
+     * {@link #skipSquare()}.
+     *
+     * @return <code>true</code> to skip the shape, the default is <code>false</code>
+     */
+    protected boolean skipCircle() {
+        return false;
+    }
+
+    /**
+     * Returns whether the inner shapes of a CIRCLE should be skipped, see
+     * {@link #skipSquareChildren(Object)}.
+     *
+     * @param circle
+     *          the object handler returned from {@link #startCircle()}, or null if not provided
+     * @return <code>true</code> to skip the inner shapes, the default is <code>false</code>
+     */
+    protected boolean skipCircleChildren(A circle) {
+        return false;
+    }
+
+    /**
+     * Returns whether this handler uses the <code>name</code> argument of the <code>*Child</code>
+     * methods. Handlers that ignore it can return <code>false</code>; the parser then passes
+     * <code>null</code> and never has to turn the label of a shape with inner shapes into a
+     * <code>String</code>.
+     *
+     * @return <code>true</code> if the child methods need the label, the default
+     */
+    protected boolean isChildLabelUsed() {
+        return true;
+    }
+
     public void fold() {
         //insert into parent
     }
 
+    /**
+     * Indicates the beginning of a new parse, before the first shape of the input is reported. A
+     * previous parse that failed may have left shapes open; handlers that track open shapes across
+     * events can discard them here, so that the shapes of this parse are not attached to them. The
+     * default implementation does nothing.
+     */
+    protected void startParse() {
+    }
+
+    /**
+     * Discards the state of previous parses, so that this handler can be reused for unrelated input.
+     * This method is called by {@link Parser#reset()}. Objects handed out before, such as the list
+     * returned by {@link ShapesHandlerImpl#getParent()}, must stay valid. Handlers that hold the
+     * results themselves, such as {@link ShapeArena} and {@link ShapeIndex}, are emptied instead, so
+     * their contents must be read or copied before the reset. The default implementation does nothing.
+     */
+    protected void reset() {
+    }
+
 }
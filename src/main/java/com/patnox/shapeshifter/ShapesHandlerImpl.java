@@ -11,6 +11,8 @@ public class ShapesHandlerImpl extends ShapesHandler<Circle, Square>
 {
     protected Shape value;
     protected ArrayList<Shape> parent = new ArrayList<>();
+    protected LabelPool labelPool;
+    protected ShapeInterner shapeInterner;
 
     @Override
     public Circle startCircle() {
@@ -26,7 +28,7 @@ public class ShapesHandlerImpl extends ShapesHandler<Circle, Square>
     @Override
     public void endCircle(Circle circle)
     {
-        value = circle;
+        value = shapeInterner != null ? shapeInterner.intern(circle) : circle;
     }
 
     @Override
@@ -35,10 +37,21 @@ public class ShapesHandlerImpl extends ShapesHandler<Circle, Square>
         circle.setLabel(name);
     }
 
+    /**
+     * Copies the label, or takes it from the label pool, and passes it to
+     * {@link #endCircleLabel(Circle, String)}, so that subclasses overriding that method still see
+     * every label.
+     */
+    @Override
+    public void endCircleLabel(Circle circle, CharSequence name)
+    {
+        endCircleLabel(circle, toLabel(name));
+    }
+
     @Override
     public void endSquare(Square square)
     {
-        value = square;
+        value = shapeInterner != null ? shapeInterner.intern(square) : square;
     }
 
     @Override
@@ -47,6 +60,48 @@ public class ShapesHandlerImpl extends ShapesHandler<Circle, Square>
         square.setLabel(name);
     }
 
+    /**
+     * Copies the label, or takes it from the label pool, and passes it to
+     * {@link #endSquareLabel(Square, String)}, so that subclasses overriding that method still see
+     * every label.
+     */
+    @Override
+    public void endSquareLabel(Square square, CharSequence name)
+    {
+        endSquareLabel(square, toLabel(name));
+    }
+
+    /**
+     * Stores the numeric label without creating a <code>String</code>. In subclasses, the label is
+     * passed to {@link #endSquareLabel(Square, String)} as text instead, as before numeric labels
+     * were reported separately, so that overrides of that method still see every label.
+     */
+    @Override
+    public void endSquareLabel(Square square, long label)
+    {
+        if (isStringLabelUsed())
+        {
+            endSquareLabel(square, Long.toString(label));
+        }
+        else
+        {
+            square.setNumber(label);
+        }
+    }
+
+    /**
+     * Returns <code>false</code> for instances of this class, which never read the child label, so
+     * the parser can pass <code>null</code>. Subclasses get <code>true</code>, as before, because
+     * they may override {@link #endCircleChild(Circle, String)} or
+     * {@link #endSquareChild(Square, String)} and read the label; subclasses that do not can
+     * override this method to return <code>false</code>.
+     */
+    @Override
+    protected boolean isChildLabelUsed()
+    {
+        return getClass() != ShapesHandlerImpl.class;
+    }
+
     @Override
     public void endCircleChild(Circle circle, String name)
     {
@@ -73,7 +128,63 @@ public class ShapesHandlerImpl extends ShapesHandler<Circle, Square>
         parent.add(value);
     }
 
+    /**
+     * Starts a new list of top-level shapes. The list returned by {@link #getParent()} before is
+     * left as it is.
+     */
+    @Override
+    protected void reset()
+    {
+        value = null;
+        parent = new ArrayList<>();
+    }
+
     public void setValue(Shape value) {
         this.value = value;
     }
+
+    public LabelPool getLabelPool() {
+        return labelPool;
+    }
+
+    /**
+     * Sets a pool to share label strings between shapes. Without a pool, every shape gets its own
+     * copy of its label.
+     *
+     * @param labelPool
+     *          the pool to intern labels in, or <code>null</code> to copy every label
+     */
+    public void setLabelPool(LabelPool labelPool) {
+        this.labelPool = labelPool;
+    }
+
+    public ShapeInterner getShapeInterner() {
+        return shapeInterner;
+    }
+
+    /**
+     * Sets an interner to share identical subtrees between shapes. With an interner, every completed
+     * shape is replaced by its canonical instance, so the result is a frozen DAG.
+     * Without an interner, every shape is a separate tree.
+     *
+     * @param shapeInterner
+     *          the interner for completed shapes, or <code>null</code> to build separate trees
+     */
+    public void setShapeInterner(ShapeInterner shapeInterner) {
+        this.shapeInterner = shapeInterner;
+    }
+
+    /**
+     * Returns whether numeric square labels are passed to {@link #endSquareLabel(Square, String)}.
+     * Subclasses in this package that do not override that method return <code>false</code>.
+     */
+    boolean isStringLabelUsed()
+    {
+        return getClass() != ShapesHandlerImpl.class;
+    }
+
+    protected String toLabel(CharSequence name)
+    {
+        return labelPool != null ? labelPool.intern(name) : name.toString();
+    }
 }
@@ -1,13 +1,21 @@
 package com.patnox.shapeshifter;
 
+import java.math.BigInteger;
 import java.util.*;
 
 /**
  * This is the square object which is a type of shape
+ * <p>
+ * Square labels are numbers. Labels that fit into a <code>long</code> and have no leading zeros are
+ * stored as a primitive, and only turned into text when {@link #getLabel()} is called. Other labels
+ * keep their text, so that {@link #getLabel()} always returns the label as it was parsed.
+ * </p>
  * @author patnox
  */
 public class Square extends Shape
 {
+    private long number;
+    private boolean numeric;
 
     public Square() {
     }
@@ -21,17 +29,101 @@ public class Square extends Shape
         }
         else
         {
-            System.err.println("Error: Invalid Syntax: Squares Should only contain other squares");
             throw new ParseException("Error: Invalid Syntax: Squares Should only contain other squares", new Location(0,0,0));
         }
     }
 
     public Square(int label) {
-        setLabel(String.valueOf(label));
+        setNumber(label);
+    }
+
+    public Square(long label) {
+        setNumber(label);
     }
 
     public Square(int label, ArrayList<Shape> children) {
-        setLabel(String.valueOf(label));
+        setNumber(label);
         setChildren(children);
     }
+
+    @Override
+    public String getLabel() {
+        return numeric ? Long.toString(number) : super.getLabel();
+    }
+
+    @Override
+    public void setLabel(String label) {
+        if (isCanonicalNumber(label)) {
+            setNumber(Long.parseLong(label));
+        }
+        else {
+            super.setLabel(label);
+            numeric = false;
+            number = 0;
+        }
+    }
+
+    /**
+     * Sets the label of this square to the given number.
+     *
+     * @param number
+     *          the label
+     */
+    public void setNumber(long number) {
+        super.setLabel(null);
+        this.number = number;
+        numeric = true;
+    }
+
+    /**
+     * Returns the label of this square as a number.
+     *
+     * @return the numeric label
+     * @throws NumberFormatException
+     *           if the label does not fit into a <code>long</code>, see {@link #getBigNumber()}
+     */
+    public long getNumber() {
+        return numeric ? number : Long.parseLong(super.getLabel());
+    }
+
+    /**
+     * Returns the label of this square as an arbitrary-precision number.
+     *
+     * @return the numeric label
+     * @throws NumberFormatException
+     *           if the label is not a number
+     */
+    public BigInteger getBigNumber() {
+        if (numeric) {
+            return BigInteger.valueOf(number);
+        }
+        String label = super.getLabel();
+        if (label == null) {
+            throw new NumberFormatException("label is null");
+        }
+        return new BigInteger(label);
+    }
+
+    /**
+     * Returns whether the label of this square is stored as a primitive number.
+     *
+     * @return <code>true</code> if {@link #getNumber()} does not need to parse text
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    static boolean isCanonicalNumber(String label) {
+        int length = label == null ? 0 : label.length();
+        if (length == 0 || length > 19 || (length > 1 && label.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = label.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return length < 19 || label.compareTo(Long.toString(Long.MAX_VALUE)) <= 0;
+    }
 }
@@ -0,0 +1,218 @@
+package com.patnox.shapeshifter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * An index of the structural characters of a document: the brackets <code>[ ] ( )</code> and line
+ * feeds, each with its position and nesting depth. Consumers that only care about structure, such
+ * as finding top-level shapes, can jump from one structural character to the next instead of
+ * stepping through every label character.
+ * <p>
+ * Bytes are scanned eight at a time: each 64-bit word of input is compared against all structural
+ * characters at once using SIMD-within-a-register arithmetic, and only the matching bytes are
+ * visited. Character input is scanned one character at a time.
+ * </p>
+ * <p>
+ * The depth of an opening bracket is the number of shapes open before it, so top-level shapes start
+ * at depth 0. A closing bracket has the same depth as the opening bracket it matches, and a line
+ * feed has the depth of the shape it is in. The index is built even for malformed input: unbalanced
+ * closing brackets get a negative depth, and {@link #getFinalDepth()} is not 0 if shapes are left
+ * open. The index does not check that brackets are of matching kinds.
+ * </p>
+ *
+ * @author patnox
+ */
+public final class StructuralIndex
+{
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long CIRCLE_BRACKETS = ONES * ')';
+    private static final long OPEN_SQUARE = ONES * '[';
+    private static final long CLOSE_SQUARE = ONES * ']';
+    private static final long LINE_FEED = ONES * '\n';
+
+    private int[] positions;
+    private int[] depths;
+    private byte[] characters;
+    private int size;
+    private int depth;
+
+    private StructuralIndex(int capacity)
+    {
+        positions = new int[capacity];
+        depths = new int[capacity];
+        characters = new byte[capacity];
+    }
+
+    /**
+     * Builds the index of the remaining bytes of the given buffer. Positions are absolute indexes
+     * into the buffer. The position of the buffer is not changed.
+     *
+     * @param input
+     *          the buffer to index
+     * @return the structural index
+     */
+    public static StructuralIndex of(ByteBuffer input)
+    {
+        if (input == null)
+        {
+            throw new NullPointerException("input is null");
+        }
+        int start = input.position();
+        int end = input.limit();
+        StructuralIndex index = new StructuralIndex(Math.max(16, (end - start) >>> 3));
+        ByteBuffer words = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = start;
+        for (; position + 8 <= end; position += 8)
+        {
+            long word = words.getLong(position);
+            long matches = matches(word | ONES, CIRCLE_BRACKETS)
+                | matches(word, OPEN_SQUARE)
+                | matches(word, CLOSE_SQUARE)
+                | matches(word, LINE_FEED);
+            while (matches != 0)
+            {
+                int offset = Long.numberOfTrailingZeros(matches) >>> 3;
+                index.add(position + offset, input.get(position + offset));
+                matches &= matches - 1;
+            }
+        }
+        for (; position < end; position++)
+        {
+            byte ch = input.get(position);
+            if (ch == '(' || ch == ')' || ch == '[' || ch == ']' || ch == '\n')
+            {
+                index.add(position, ch);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Builds the index of the given characters. Positions are character indexes.
+     *
+     * @param input
+     *          the characters to index
+     * @return the structural index
+     */
+    public static StructuralIndex of(CharSequence input)
+    {
+        if (input == null)
+        {
+            throw new NullPointerException("input is null");
+        }
+        int length = input.length();
+        StructuralIndex index = new StructuralIndex(Math.max(16, length >>> 3));
+        for (int position = 0; position < length; position++)
+        {
+            char ch = input.charAt(position);
+            if (ch == '(' || ch == ')' || ch == '[' || ch == ']' || ch == '\n')
+            {
+                index.add(position, (byte)ch);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of structural characters in the index.
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the position of the given structural character in the input.
+     *
+     * @param entry
+     *          the index entry, between 0 and {@link #size()}
+     * @return the position in the input
+     */
+    public int getPosition(int entry)
+    {
+        checkEntry(entry);
+        return positions[entry];
+    }
+
+    /**
+     * Returns the given structural character.
+     *
+     * @param entry
+     *          the index entry, between 0 and {@link #size()}
+     * @return one of <code>[ ] ( )</code> or a line feed
+     */
+    public char getCharacter(int entry)
+    {
+        checkEntry(entry);
+        return (char)characters[entry];
+    }
+
+    /**
+     * Returns the nesting depth of the given structural character.
+     *
+     * @param entry
+     *          the index entry, between 0 and {@link #size()}
+     * @return the depth, negative for unbalanced closing brackets
+     */
+    public int getDepth(int entry)
+    {
+        checkEntry(entry);
+        return depths[entry];
+    }
+
+    /**
+     * Returns the number of shapes left open at the end of the input.
+     *
+     * @return the final depth, 0 for balanced input
+     */
+    public int getFinalDepth()
+    {
+        return depth;
+    }
+
+    private void add(int position, byte ch)
+    {
+        if (size == positions.length)
+        {
+            int capacity = size * 2;
+            positions = Arrays.copyOf(positions, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            characters = Arrays.copyOf(characters, capacity);
+        }
+        if (ch == ')' || ch == ']')
+        {
+            depth--;
+        }
+        positions[size] = position;
+        depths[size] = depth;
+        characters[size] = ch;
+        size++;
+        if (ch == '(' || ch == '[')
+        {
+            depth++;
+        }
+    }
+
+    /**
+     * Returns a word with the high bit set in every byte of <code>word</code> that equals the
+     * corresponding byte of <code>pattern</code>, and all other bits clear.
+     */
+    private static long matches(long word, long pattern)
+    {
+        long x = word ^ pattern;
+        return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+    }
+
+    private void checkEntry(int entry)
+    {
+        if (entry < 0 || entry >= size)
+        {
+            throw new IndexOutOfBoundsException("entry " + entry + " out of bounds");
+        }
+    }
+}
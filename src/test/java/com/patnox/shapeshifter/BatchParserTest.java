@@ -0,0 +1,107 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BatchParserTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void batchTestLines() throws Exception
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+        {
+            text.append(i % 7 == 3 ? "(BROKEN" : "[" + i + "](SHAPE)").append(i % 10 == 0 ? "\n\n" : "\n");
+        }
+        BatchParser batch = new BatchParser();
+        batch.setConcurrency(3);
+        batch.setQueueDepth(5);
+        List<BatchParser.Result> results = new ArrayList<>();
+        batch.parseLines(new StringReader(text.toString()), results::add);
+        assertEquals(200, results.size());
+        int line = 1;
+        for (int i = 0; i < 200; i++)
+        {
+            BatchParser.Result result = results.get(i);
+            assertEquals(i, result.getIndex());
+            assertEquals("line " + line, result.getName());
+            line += i % 10 == 0 ? 2 : 1;
+            if (i % 7 == 3)
+            {
+                assertFalse(result.isValid());
+                assertNull(result.getShapes());
+                assertEquals(7, result.getError().getLocation().offset);
+            }
+            else
+            {
+                assertTrue(result.isValid());
+                assertEquals(2, result.getShapes().getChildren().size());
+                assertEquals((long)i, ((Square)result.getShapes().getChildren().get(0)).getNumber());
+            }
+        }
+    }
+
+    @Test
+    public void batchTestBackpressure() throws Exception
+    {
+        AtomicInteger read = new AtomicInteger();
+        Iterable<String> documents = () -> new Iterator<String>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return read.get() < 100;
+            }
+
+            @Override
+            public String next()
+            {
+                read.incrementAndGet();
+                return "(A)";
+            }
+        };
+        BatchParser batch = new BatchParser();
+        batch.setConcurrency(2);
+        batch.setQueueDepth(4);
+        int[] consumed = new int[1];
+        batch.parse(documents, result ->
+        {
+            assertEquals(consumed[0]++, result.getIndex());
+            assertTrue(read.get() - consumed[0] <= 4);
+        });
+        assertEquals(100, consumed[0]);
+    }
+
+    @Test
+    public void batchTestFiles() throws Exception
+    {
+        File directory = folder.newFolder("documents");
+        Files.write(new File(directory, "b.txt").toPath(), "(B)\n[2]".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, "a.txt").toPath(), "(A(".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, "c.txt").toPath(), "(C)".getBytes(StandardCharsets.UTF_8));
+        new File(directory, "nested").mkdir();
+        List<BatchParser.Result> results = new ArrayList<>();
+        new BatchParser().parseFiles(directory.toPath(), results::add);
+        assertEquals(3, results.size());
+        assertEquals("a.txt", results.get(0).getName());
+        assertFalse(results.get(0).isValid());
+        assertEquals("b.txt", results.get(1).getName());
+        assertEquals(2, results.get(1).getShapes().getChildren().size());
+        assertEquals("C", results.get(2).getShapes().getChildren().get(0).getLabel());
+    }
+}
@@ -0,0 +1,82 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class LazyShapesTest {
+
+    @Test
+    public void lazyTestSameShapes() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(7);
+        StringWriter text = new StringWriter();
+        generator.generate(text, 1 << 18);
+        String string = text.toString() + "\n[ 007 [99999999999999999999]]( ABC\t)";
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse(string);
+        String expected = describe(new ShapesContainer(handler.getParent()));
+        assertEquals(expected, describe(LazyShapes.parse(string)));
+        assertEquals(expected, describe(LazyShapes.parse(ByteBuffer.wrap(string.getBytes(StandardCharsets.US_ASCII)))));
+        assertEquals(expected, describe(LazyShapes.parse(string).freeze()));
+    }
+
+    @Test
+    public void lazyTestOnDemand()
+    {
+        ShapesContainer shapes = LazyShapes.parse("[12](BALL(INK[1[35]](CHARLIE)))(PEN)");
+        assertEquals(3, shapes.getChildren().size());
+        Shape ball = shapes.getChildren().get(1);
+        assertTrue(ball instanceof Circle);
+        assertTrue(shapes.getChildren().get(0) instanceof Square);
+        assertEquals(12, ((Square)shapes.getChildren().get(0)).getNumber());
+        Shape ink = ball.getChildren().get(0);
+        assertEquals(2, ink.getChildren().size());
+        assertEquals("CHARLIE", ink.getChildren().get(1).getLabel());
+        assertEquals("INK", ink.getLabel());
+        ball.setLabel("BAT");
+        assertEquals("BAT", ball.getLabel());
+        ink.addChild(new Circle("PEN"));
+        assertEquals(3, ink.getChildren().size());
+        assertEquals("PEN", shapes.getChildren().get(2).getLabel());
+        Square square = (Square)ink.getChildren().get(0);
+        assertTrue(square.isNumeric());
+        assertEquals("35", square.getChildren().get(0).getLabel());
+
+        try
+        {
+            LazyShapes.parse("[1](BALL(INK[1(35)]))");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+            assertEquals(new Location(14, 1, 15), expected.getLocation());
+        }
+    }
+
+    private static String describe(Shape shape)
+    {
+        StringBuilder text = new StringBuilder();
+        describe(shape, text);
+        return text.toString();
+    }
+
+    private static void describe(Shape shape, StringBuilder text)
+    {
+        text.append(shape instanceof Square ? '[' : '(').append(shape.getLabel());
+        if (shape instanceof Square)
+        {
+            text.append(((Square)shape).isNumeric() ? "#" : "");
+        }
+        for (Shape child : shape.getChildren())
+        {
+            describe(child, text);
+        }
+        text.append(shape instanceof Square ? ']' : ')');
+    }
+}
@@ -0,0 +1,94 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelParserTest {
+
+    @Test
+    public void parallelTestSameAsSequential() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(11);
+        StringWriter writer = new StringWriter();
+        generator.generate(writer, 200000);
+        String document = writer.toString();
+
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse(document);
+
+        ParallelParser parser = new ParallelParser();
+        parser.setSectionSize(1000);
+        assertSameShapes(handler.getParent(), parser.parse(document).getChildren());
+        ByteBuffer bytes = ByteBuffer.wrap(document.getBytes(StandardCharsets.US_ASCII));
+        assertSameShapes(handler.getParent(), parser.parse(bytes).getChildren());
+    }
+
+    @Test
+    public void parallelTestErrorLocation()
+    {
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            document.append("(A[1])\n");
+        }
+        document.append("(A[1x])\n(B)");
+        ParallelParser parser = new ParallelParser();
+        parser.setSectionSize(10);
+        try
+        {
+            parser.parse(document.toString());
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertEquals(new Location(704, 101, 5), exception.getLocation());
+        }
+    }
+
+    @Test
+    public void parallelTestStructuralIndex()
+    {
+        String document = "[12](BALL(INK[1[35]](CHARLIE)))\n(A)";
+        StructuralIndex chars = StructuralIndex.of(document);
+        StructuralIndex bytes = StructuralIndex.of(ByteBuffer.wrap(document.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(15, chars.size());
+        assertEquals(chars.size(), bytes.size());
+        for (int entry = 0; entry < chars.size(); entry++)
+        {
+            assertEquals(chars.getPosition(entry), bytes.getPosition(entry));
+            assertEquals(chars.getCharacter(entry), bytes.getCharacter(entry));
+            assertEquals(chars.getDepth(entry), bytes.getDepth(entry));
+            assertEquals(document.charAt(chars.getPosition(entry)), chars.getCharacter(entry));
+        }
+        assertEquals(3, chars.getDepth(5));
+        assertEquals(2, chars.getDepth(8));
+        assertEquals(0, bytes.getFinalDepth());
+        assertEquals(-1, StructuralIndex.of("(A))").getDepth(2));
+    }
+
+    @Test(expected = ParseException.class)
+    public void parallelTestUnbalanced()
+    {
+        new ParallelParser().parse("(A[1])(B))");
+    }
+
+    private static void assertSameShapes(List<Shape> expected, List<Shape> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            Shape left = expected.get(i);
+            Shape right = actual.get(i);
+            assertEquals(left.getClass(), right.getClass());
+            assertEquals(left.getLabel(), right.getLabel());
+            assertSameShapes(left.getChildren(), right.getChildren());
+        }
+    }
+}
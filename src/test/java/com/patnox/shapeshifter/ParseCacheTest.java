@@ -0,0 +1,85 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ParseCacheTest {
+
+    @Test
+    public void cacheTestHits()
+    {
+        ParseCache cache = new ParseCache(1 << 20);
+        ShapesContainer first = cache.parse("[12](BALL(INK[1[35]](CHARLIE)))");
+        assertTrue(first.isFrozen());
+        assertSame(first, cache.parse(new String("[12](BALL(INK[1[35]](CHARLIE)))")));
+        assertNotSame(first, cache.parse("[12](BALL(INK[1[35]](CHARLIES)))"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+        try
+        {
+            cache.parse("(BROKEN");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+        assertEquals(2, cache.size());
+        assertEquals(retainedBytes("[12](BALL(INK[1[35]](CHARLIE)))") + retainedBytes("[12](BALL(INK[1[35]](CHARLIES)))"),
+            cache.getRetainedBytes());
+        assertTrue(cache.getRetainedBytes() > ParseCache.estimateSize(first));
+    }
+
+    @Test
+    public void cacheTestEviction()
+    {
+        long size = retainedBytes("(AA)");
+        ParseCache cache = new ParseCache(3 * size);
+        ShapesContainer a = cache.parse("(AA)");
+        cache.parse("(AB)");
+        cache.parse("(AC)");
+        assertSame(a, cache.parse("(AA)"));
+        cache.parse("(AD)");
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.size());
+        assertSame(a, cache.parse("(AA)"));
+        long misses = cache.getMissCount();
+        cache.parse("(AB)");
+        assertEquals(misses + 1, cache.getMissCount());
+        assertTrue(cache.getRetainedBytes() <= 3 * size);
+
+        cache.parse("(" + new String(new char[1000]).replace('\0', 'X') + ")");
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void cacheTestKey()
+    {
+        Set<String> keys = new HashSet<>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+        {
+            ParseCache.Key key = ParseCache.Key.of(text);
+            assertEquals(key.high + ":" + key.low, ParseCache.Key.of(text.toString()).high + ":"
+                + ParseCache.Key.of(text.toString()).low);
+            assertTrue(keys.add(key.high + ":" + key.low));
+            text.append('(');
+        }
+        assertFalse(ParseCache.Key.of("(AB)").equals(ParseCache.Key.of("(BA)")));
+
+        ParseCache.Key key = ParseCache.Key.of("(AB)");
+        assertEquals(key, new ParseCache.Key(new String("(AB)"), key.high, key.low));
+        assertNotEquals(key, new ParseCache.Key("(BA)", key.high, key.low));
+    }
+
+    private static long retainedBytes(String text)
+    {
+        ParseCache cache = new ParseCache(1 << 20);
+        cache.parse(text);
+        return cache.getRetainedBytes();
+    }
+}
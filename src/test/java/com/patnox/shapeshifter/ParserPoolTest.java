@@ -0,0 +1,157 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ParserPoolTest {
+
+    @Test
+    public void poolTestReuse()
+    {
+        ParserPool<ShapesHandlerImpl> pool = new ParserPool<>(ShapesHandlerImpl::new, ParserConfig.DEFAULT, 1);
+        Parser parser;
+        ArrayList<Shape> first;
+        try (ParserPool.Lease<ShapesHandlerImpl> lease = pool.acquire())
+        {
+            parser = lease.getParser();
+            parser.parse("[12](BALL(INK[1[35]](CHARLIE)))");
+            first = lease.getHandler().getParent();
+        }
+        assertEquals(1, pool.getIdleCount());
+        try (ParserPool.Lease<ShapesHandlerImpl> lease = pool.acquire())
+        {
+            assertSame(parser, lease.getParser());
+            assertEquals(0, lease.getHandler().getParent().size());
+        }
+        assertEquals(2, first.size());
+
+        ParserPool.Lease<ShapesHandlerImpl> lease = pool.acquire();
+        ParserPool.Lease<ShapesHandlerImpl> other = pool.acquire();
+        assertNotSame(lease.getParser(), other.getParser());
+        lease.close();
+        other.close();
+        assertEquals(1, pool.getIdleCount());
+        try
+        {
+            other.getParser();
+            fail();
+        }
+        catch (IllegalStateException expected)
+        {
+        }
+    }
+
+    @Test
+    public void poolTestDoubleClose()
+    {
+        ParserPool<ShapesHandlerImpl> pool = new ParserPool<>(ShapesHandlerImpl::new, ParserConfig.DEFAULT, 1);
+        ParserPool.Lease<ShapesHandlerImpl> stale = pool.acquire();
+        stale.close();
+        try (ParserPool.Lease<ShapesHandlerImpl> lease = pool.acquire())
+        {
+            lease.getParser().parse("(BALL[1])");
+            stale.close();
+            assertEquals(0, pool.getIdleCount());
+            assertEquals(1, lease.getHandler().getParent().size());
+            ParserPool.Lease<ShapesHandlerImpl> other = pool.acquire();
+            assertNotSame(lease.getParser(), other.getParser());
+            other.close();
+        }
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void poolTestSettingsReset()
+    {
+        ParserPool<ShapesHandlerImpl> pool = new ParserPool<>(ShapesHandlerImpl::new, ParserConfig.DEFAULT, 1);
+        List<Location> found = new ArrayList<>();
+        try (ParserPool.Lease<ShapesHandlerImpl> lease = pool.acquire())
+        {
+            lease.getParser().setMaxNestingLevel(1);
+            lease.getParser().setParseListener(new ParseListener()
+            {
+                @Override
+                public void circleFound(Location location)
+                {
+                    found.add(location);
+                }
+            });
+            lease.getParser().parse("(BALL)");
+        }
+        assertEquals(1, found.size());
+        try (ParserPool.Lease<ShapesHandlerImpl> lease = pool.acquire())
+        {
+            lease.getParser().parse("(BALL(INK[1]))");
+            assertEquals(1, lease.getHandler().getParent().size());
+        }
+        assertEquals(1, found.size());
+    }
+
+    @Test
+    public void poolTestArenaReset()
+    {
+        ParserPool<ShapeArena> pool = new ParserPool<>(ShapeArena::new, ParserConfig.DEFAULT, 1);
+        ShapeArena arena;
+        ShapesContainer shapes;
+        try (ParserPool.Lease<ShapeArena> lease = pool.acquire())
+        {
+            lease.getParser().parse("(BALL[1])[2]");
+            arena = lease.getHandler();
+            shapes = arena.toShapes();
+        }
+        assertEquals(0, arena.size());
+        assertEquals(2, shapes.getChildren().size());
+    }
+
+    @Test
+    public void poolTestConcurrent() throws Exception
+    {
+        ParserConfig config = ParserConfig.DEFAULT.withMaxNestingLevel(50).withBufferSize(16);
+        ParserPool<ShapeArena> pool = new ParserPool<>(ShapeArena::new, config, 4);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int task = 0; task < 64; task++)
+            {
+                final int count = task;
+                results.add(executor.submit(() ->
+                {
+                    StringBuilder text = new StringBuilder();
+                    for (int i = 0; i <= count; i++)
+                    {
+                        text.append("(SHAPE[").append(i).append("])\n");
+                    }
+                    if (count % 5 == 0)
+                    {
+                        try
+                        {
+                            pool.parse(text + "(BROKEN", ShapeArena::size);
+                            fail();
+                        }
+                        catch (ParseException expected)
+                        {
+                        }
+                    }
+                    return pool.parse(text.toString(), ShapeArena::size);
+                }));
+            }
+            for (int task = 0; task < results.size(); task++)
+            {
+                assertEquals(2 * (task + 1), (int)results.get(task).get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertTrue(pool.getIdleCount() <= 4);
+    }
+}
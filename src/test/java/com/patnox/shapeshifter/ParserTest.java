@@ -3,6 +3,17 @@ package com.patnox.shapeshifter;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class ParserTest {
@@ -74,6 +85,530 @@ public class ParserTest {
         new Parser(handler).parse("[12](BALL(INK[1[35]](CHARLIE)))");
     }
 
+    @Test
+    public void parseTestWhitespacePadding()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse(" \n[12] (BALL [3])\t");
+        assertEquals(2, handler.getParent().size());
+        assertEquals("12", handler.getParent().get(0).getLabel());
+        assertEquals("3", handler.getParent().get(1).getChildren().get(0).getLabel());
+    }
+
+    @Test
+    public void parseTestInvalidLabelLocation()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        try
+        {
+            new Parser(handler).parse("(BALL[12a])");
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertEquals(8, exception.getLocation().offset);
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseTestUnbalancedBrackets()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse("(BALL[12)]");
+    }
+
+    @Test
+    public void parseTestListenerEvents()
+    {
+        final List<String> events = new ArrayList<>();
+        Parser parser = new Parser(new ShapesHandlerImpl());
+        parser.setParseListener(new ParseListener()
+        {
+            @Override
+            public void squareFound(Location location)
+            {
+                events.add("square " + location.offset);
+            }
+
+            @Override
+            public void circleFound(Location location)
+            {
+                events.add("circle " + location.offset);
+            }
+
+            @Override
+            public void errorFound(ParseException exception)
+            {
+                events.add("error " + exception.getLocation().offset);
+            }
+        });
+        parser.parse("(A[1])");
+        assertEquals(Arrays.asList("circle 0", "square 2"), events);
+        events.clear();
+        try
+        {
+            parser.parse("(A[x])");
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertEquals(Arrays.asList("circle 0", "square 2", "error 3"), events);
+        }
+    }
+
+    @Test
+    public void parseTestDeepNesting()
+    {
+        int depth = 50000;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+        {
+            builder.append("(A");
+        }
+        builder.append("[1]");
+        for (int i = 0; i < depth; i++)
+        {
+            builder.append(')');
+        }
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        Parser parser = new Parser(handler);
+        parser.setMaxNestingLevel(depth + 1);
+        parser.parse(builder.toString());
+        Shape shape = handler.getParent().get(0);
+        for (int i = 0; i < depth; i++)
+        {
+            assertEquals("A", shape.getLabel());
+            shape = shape.getChildren().get(0);
+        }
+        assertEquals("1", shape.getLabel());
+    }
+
+    @Test(expected = ParseException.class)
+    public void parseTestNestingTooDeep()
+    {
+        Parser parser = new Parser(new ShapesHandlerImpl());
+        parser.setMaxNestingLevel(2);
+        parser.parse("(A(B[1]))");
+    }
+
+    @Test
+    public void parseTestByteBuffer()
+    {
+        ByteBuffer input = ByteBuffer.wrap("xx[12](BALL(INK[1[35]](CHARLIE)))".getBytes(StandardCharsets.US_ASCII));
+        input.position(2);
+        final List<String> labels = new ArrayList<>();
+        new Parser(new ShapesHandler<Object, Object>()
+        {
+            @Override
+            public void endSquareLabel(Object square, ByteBuffer source, int offset, int length)
+            {
+                labels.add(offset + ":" + length);
+            }
+
+            @Override
+            public void endCircleLabel(Object circle, String name)
+            {
+                labels.add(name);
+            }
+        }).parse(input);
+        assertEquals(Arrays.asList("3:2", "BALL", "INK", "16:1", "18:2", "CHARLIE"), labels);
+        assertEquals(2, input.position());
+    }
+
+    @Test
+    public void parseTestByteBufferErrorLocation()
+    {
+        ByteBuffer input = ByteBuffer.wrap("xx(A\n[1b])".getBytes(StandardCharsets.US_ASCII));
+        input.position(2);
+        try
+        {
+            new Parser(new ShapesHandlerImpl()).parse(input);
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertEquals(new Location(5, 2, 3), exception.getLocation());
+        }
+    }
+
+    @Test
+    public void parseTestPath() throws IOException
+    {
+        Path path = Files.createTempFile("shapes", ".txt");
+        try
+        {
+            Files.write(path, "[12](BALL(INK[1[35]](CHARLIE)))\n".getBytes(StandardCharsets.US_ASCII));
+            ShapesHandlerImpl handler = new ShapesHandlerImpl();
+            new Parser(handler).parse(path);
+            assertEquals(2, handler.getParent().size());
+            assertEquals("CHARLIE", handler.getParent().get(1).getChildren().get(0).getChildren().get(1).getLabel());
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void parseTestStringLabelsInSubclass()
+    {
+        final List<String> labels = new ArrayList<>();
+        ShapesHandlerImpl handler = new ShapesHandlerImpl()
+        {
+            @Override
+            public void endCircleLabel(Circle circle, String name)
+            {
+                labels.add(name);
+                super.endCircleLabel(circle, name);
+            }
+
+            @Override
+            public void endSquareLabel(Square square, String name)
+            {
+                labels.add(name);
+                super.endSquareLabel(square, name);
+            }
+        };
+        handler.setLabelPool(new LabelPool());
+        new Parser(handler).parse("(INK[007])");
+        new Parser(handler).parse(ByteBuffer.wrap("(BALL[01])".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Arrays.asList("INK", "007", "BALL", "01"), labels);
+        assertEquals("007", handler.getParent().get(0).getChildren().get(0).getLabel());
+    }
+
+    @Test
+    public void parseTestLabelPool()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        handler.setLabelPool(new LabelPool());
+        new Parser(handler).parse("(INK[007])(INK[007])");
+        Shape first = handler.getParent().get(0);
+        Shape second = handler.getParent().get(1);
+        assertEquals("INK", first.getLabel());
+        assertSame(first.getLabel(), second.getLabel());
+        assertSame(first.getChildren().get(0).getLabel(), second.getChildren().get(0).getLabel());
+    }
+
+    @Test
+    public void parseTestShapeInterner()
+    {
+        ShapeInterner interner = new ShapeInterner();
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        handler.setShapeInterner(interner);
+        new Parser(handler).parse("(BALL(INK[1[35]](CHARLIE)))(PEN(INK[1[35]](CHARLIE)))[1[35]](INK[1[36]](CHARLIE))");
+        Shape ink = handler.getParent().get(0).getChildren().get(0);
+        assertSame(ink, handler.getParent().get(1).getChildren().get(0));
+        assertSame(ink.getChildren().get(0), handler.getParent().get(2));
+        assertNotSame(ink, handler.getParent().get(3));
+        assertSame(ink.getChildren().get(1), handler.getParent().get(3).getChildren().get(1));
+        assertEquals("35", ink.getChildren().get(0).getChildren().get(0).getLabel());
+
+        ShapesHandlerImpl other = new ShapesHandlerImpl();
+        other.setShapeInterner(interner);
+        new Parser(other).parse("(INK[1[35]](CHARLIE)) [1[035]]");
+        assertSame(ink, other.getParent().get(0));
+        assertNotSame(ink.getChildren().get(0), other.getParent().get(1));
+        assertEquals(11, interner.size());
+        assertTrue(ink.isFrozen());
+    }
+
+    @Test
+    public void parseTestFreeze()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse("[12](BALL(INK[1[35]](CHARLIE)))");
+        ShapesContainer shapes = new ShapesContainer(handler.getParent());
+        Shape ball = shapes.getChildren().get(1);
+        assertSame(shapes, shapes.freeze());
+        assertTrue(shapes.isFrozen());
+        assertTrue(ball.getChildren().get(0).getChildren().get(1).isFrozen());
+        assertSame(shapes.getChildren().get(0).getChildren(), ball.getChildren().get(0).getChildren().get(1).getChildren());
+        assertEquals("INK", ball.getChildren().get(0).getLabel());
+        try
+        {
+            ball.getChildren().add(new Circle("PEN"));
+            fail();
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+        try
+        {
+            ball.getChildren().subList(0, 1).clear();
+            fail();
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+        try
+        {
+            ((Square)shapes.getChildren().get(0)).setNumber(13);
+            fail();
+        }
+        catch (IllegalStateException expected)
+        {
+        }
+        assertEquals(12, ((Square)shapes.getChildren().get(0)).getNumber());
+        assertEquals(1, ball.getChildren().size());
+    }
+
+    @Test
+    public void parseTestValidate() throws IOException
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        Parser parser = new Parser(handler, ParserConfig.DEFAULT.withBufferSize(4));
+        parser.validate("[12](BALL(INK[1[35]](CHARLIE)))");
+        parser.validate(new StringReader("[007[99999999999999999999]]\n(ABCDEFGHIJKLMNOP)"));
+        parser.validate(ByteBuffer.wrap("(A[1])".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(0, handler.getParent().size());
+
+        String[] invalid = { "[12(BALL)]", "[1]\n [2 [3] (A)]", "(A[1)", "(a)", "", "(A))" };
+        Location[] locations = { new Location(3, 1, 4), new Location(12, 2, 9), new Location(4, 1, 5),
+            new Location(1, 1, 2), new Location(0, 1, 1), new Location(3, 1, 4) };
+        for (int i = 0; i < invalid.length; i++)
+        {
+            try
+            {
+                parser.validate(invalid[i]);
+                fail(invalid[i]);
+            }
+            catch (ParseException expected)
+            {
+                assertEquals(invalid[i], locations[i], expected.getLocation());
+            }
+            try
+            {
+                parser.parse(invalid[i]);
+                fail(invalid[i]);
+            }
+            catch (ParseException expected)
+            {
+                assertEquals(invalid[i], locations[i], expected.getLocation());
+            }
+        }
+
+        parser.reset();
+        parser.parse("(A[1])");
+        assertEquals(1, handler.getParent().size());
+        assertEquals("A", handler.getParent().get(0).getLabel());
+    }
+
+    @Test
+    public void parseTestLabelsAcrossBufferRefills() throws IOException
+    {
+        final List<String> labels = new ArrayList<>();
+        new Parser(new ShapesHandler<Object, Object>()
+        {
+            @Override
+            public void startCircleChild(Object circle, String name)
+            {
+                labels.add(name);
+            }
+
+            @Override
+            public void endSquareLabel(Object square, CharSequence label)
+            {
+                labels.add(label.toString());
+            }
+        }).parse(new StringReader("(ABCDEFGHIJ[1234567](XYZ[12345]))"), 4);
+        assertEquals(Arrays.asList("ABCDEFGHIJ", "1234567", "ABCDEFGHIJ", "XYZ", "12345"), labels);
+    }
+
+    @Test
+    public void parseTestNumericSquareLabels()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse("[12][007][0][99999999999999999999][9223372036854775807]");
+        ArrayList<Shape> squares = handler.getParent();
+        Square twelve = (Square)squares.get(0);
+        assertTrue(twelve.isNumeric());
+        assertEquals(12, twelve.getNumber());
+        assertEquals("12", twelve.getLabel());
+        Square padded = (Square)squares.get(1);
+        assertFalse(padded.isNumeric());
+        assertEquals("007", padded.getLabel());
+        assertEquals(7, padded.getNumber());
+        assertEquals("0", squares.get(2).getLabel());
+        Square big = (Square)squares.get(3);
+        assertFalse(big.isNumeric());
+        assertEquals(new BigInteger("99999999999999999999"), big.getBigNumber());
+        assertEquals(Long.MAX_VALUE, ((Square)squares.get(4)).getNumber());
+    }
+
+    @Test
+    public void parseTestNumberLabelsInSubclass()
+    {
+        final List<String> labels = new ArrayList<>();
+        ShapesHandlerImpl handler = new ShapesHandlerImpl()
+        {
+            @Override
+            public void endSquareLabel(Square square, String name)
+            {
+                labels.add(name);
+                super.endSquareLabel(square, name);
+            }
+        };
+        new Parser(handler).parse("[12[007]]");
+        new Parser(handler).parse(ByteBuffer.wrap("[35]".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Arrays.asList("12", "007", "35"), labels);
+        assertTrue(((Square)handler.getParent().get(0)).isNumeric());
+
+        Square square = new Square(0);
+        square.setLabel(null);
+        assertNull(square.getLabel());
+        assertFalse(square.isNumeric());
+        square.setNumber(5);
+        assertEquals("5", square.getLabel());
+        square.setLabel("05");
+        assertFalse(square.isNumeric());
+        assertEquals(5, square.getNumber());
+    }
+
+    @Test
+    public void parseTestNumericSquareLabelCallback()
+    {
+        final List<Object> labels = new ArrayList<>();
+        new Parser(new ShapesHandler<Object, Object>()
+        {
+            @Override
+            public void endSquareLabel(Object square, long label)
+            {
+                labels.add(label);
+            }
+
+            @Override
+            public void endSquareLabel(Object square, CharSequence label)
+            {
+                labels.add(label.toString());
+            }
+        }).parse(ByteBuffer.wrap("[1[35]][01]".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Arrays.<Object>asList(1L, 35L, "01"), labels);
+    }
+
+    @Test
+    public void parseTestSkip()
+    {
+        final List<String> events = new ArrayList<>();
+        ShapesHandler<Object, Object> handler = new ShapesHandler<Object, Object>()
+        {
+            private String last;
+
+            @Override
+            protected boolean skipSquare()
+            {
+                return true;
+            }
+
+            @Override
+            protected boolean skipCircleChildren(Object circle)
+            {
+                return last.equals("B");
+            }
+
+            @Override
+            public void endCircleLabel(Object circle, String name)
+            {
+                last = name;
+                events.add(name);
+            }
+
+            @Override
+            public void startCircleChild(Object circle, String name)
+            {
+                events.add("child");
+            }
+
+            @Override
+            public void endCircle(Object circle)
+            {
+                events.add("end " + getLocation().offset);
+            }
+        };
+        new Parser(handler).parse("[1(X)] (A[2] (B(C[x)]) [3]) [4]\n(D)");
+        assertEquals(Arrays.asList("A", "child", "B", "end 22", "end 27", "D", "end 35"), events);
+        new Parser(handler).parse(ByteBuffer.wrap("(B(C[1]))".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("end 9", events.get(events.size() - 1));
+    }
+
+    @Test
+    public void parseTestSkipUnbalanced()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl()
+        {
+            @Override
+            protected boolean skipSquare()
+            {
+                return true;
+            }
+        };
+        try
+        {
+            new Parser(handler).parse("(A[1[2]) [3)");
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertEquals(new Location(7, 1, 8), exception.getLocation());
+        }
+        try
+        {
+            new Parser(handler).parse("[1[2]");
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertTrue(exception.getMessage().startsWith("Unexpected end of input"));
+        }
+    }
+
+    @Test
+    public void parseTestReuse() throws IOException
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        Parser parser = new Parser(handler, ParserConfig.DEFAULT.withBufferSize(4).withMaxNestingLevel(3));
+        parser.parse("(ABCDEFGH[12345678])");
+        try
+        {
+            parser.parse(new StringReader("(A(B(C(D))))"));
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+        parser.reset();
+        assertEquals(0, handler.getParent().size());
+        parser.parse("[1] (XYZ)");
+        assertEquals(2, handler.getParent().size());
+        assertEquals("XYZ", handler.getParent().get(1).getLabel());
+    }
+
+    @Test
+    public void parseTestChildLabelInSubclass()
+    {
+        List<String> names = new ArrayList<>();
+        ShapesHandlerImpl handler = new ShapesHandlerImpl()
+        {
+            @Override
+            public void endCircleChild(Circle circle, String name)
+            {
+                names.add(name);
+                super.endCircleChild(circle, name);
+            }
+
+            @Override
+            public void endSquareChild(Square square, String name)
+            {
+                names.add(name);
+                super.endSquareChild(square, name);
+            }
+        };
+        new Parser(handler).parse("(BALL(INK[1[35]]))");
+        assertEquals(3, names.size());
+        assertFalse(names.contains(null));
+        assertEquals(1, handler.getParent().size());
+        assertFalse(new ShapesHandlerImpl().isChildLabelUsed());
+    }
+
     @Test(expected = NullPointerException.class)
     public void testThrow()
     {
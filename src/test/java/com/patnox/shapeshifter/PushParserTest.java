@@ -0,0 +1,198 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PushParserTest {
+
+    @Test
+    public void pushTestChunks() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(5);
+        generator.setMaxLabelLength(20);
+        StringWriter writer = new StringWriter();
+        generator.generate(writer, 20000);
+        String text = "  " + writer.toString().replace(")", " ) ");
+        Random random = new Random(5);
+        for (int maxChunk : new int[] {1, 7, 4096})
+        {
+            for (boolean skip : new boolean[] {false, true})
+            {
+                EventLog expected = new EventLog(skip);
+                new Parser(expected).parse(text);
+                EventLog actual = new EventLog(skip);
+                feed(new PushParser(actual), text, maxChunk, random).end();
+                for (int i = 0; i < expected.events.size(); i++)
+                {
+                    assertEquals(maxChunk + " " + skip + " " + i, expected.events.get(i), actual.events.get(i));
+                }
+                assertEquals(expected.events.size(), actual.events.size());
+            }
+        }
+    }
+
+    @Test
+    public void pushTestErrors()
+    {
+        for (String text : Arrays.asList("", " \n ", "(A", "[12", "[1(B)]", "(A[x])", "(A]", "(A)\n$"))
+        {
+            ParseException expected = null;
+            try
+            {
+                new Parser(new ShapesHandlerImpl()).parse(text);
+            }
+            catch (ParseException exception)
+            {
+                expected = exception;
+            }
+            assertNotNull(text, expected);
+            PushParser parser = new PushParser(new ShapesHandlerImpl());
+            try
+            {
+                feed(parser, text, 1, new Random(1)).end();
+                fail(text);
+            }
+            catch (ParseException exception)
+            {
+                assertEquals(text, expected.getMessage(), exception.getMessage());
+            }
+            try
+            {
+                parser.feed(ByteBuffer.allocate(1));
+                fail();
+            }
+            catch (IllegalStateException expectedState)
+            {
+            }
+        }
+    }
+
+    @Test
+    public void pushTestIncremental()
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        PushParser parser = new PushParser(handler);
+        parser.feed(ByteBuffer.wrap("(BALL)\n[1".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(1, handler.getParent().size());
+        parser.feed(ByteBuffer.wrap("2]".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(2, handler.getParent().size());
+        assertEquals("12", handler.getParent().get(1).getLabel());
+        parser.end();
+    }
+
+    private static PushParser feed(PushParser parser, String text, int maxChunk, Random random)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer chunk = ByteBuffer.allocate(maxChunk);
+        for (int position = 0; position < bytes.length; )
+        {
+            int length = Math.min(bytes.length - position, 1 + random.nextInt(maxChunk));
+            chunk.clear();
+            chunk.put(bytes, position, length);
+            chunk.flip();
+            parser.feed(chunk);
+            assertFalse(chunk.hasRemaining());
+            position += length;
+        }
+        return parser;
+    }
+
+    /**
+     * Records every callback with its location, and skips the inner shapes of circles starting with A.
+     */
+    private static class EventLog extends ShapesHandler<Object, Object>
+    {
+        final List<String> events = new ArrayList<>();
+        private final boolean skip;
+        private String label;
+
+        EventLog(boolean skip)
+        {
+            this.skip = skip;
+        }
+
+        private void log(String event)
+        {
+            events.add(event + "@" + getLocation() + "/" + getLocation().offset);
+        }
+
+        @Override
+        public Object startSquare()
+        {
+            log("[");
+            return null;
+        }
+
+        @Override
+        public Object startCircle()
+        {
+            log("(");
+            return null;
+        }
+
+        @Override
+        public void endSquare(Object square)
+        {
+            log("]");
+        }
+
+        @Override
+        public void endCircle(Object circle)
+        {
+            log(")");
+        }
+
+        @Override
+        public void endSquareLabel(Object square, long number)
+        {
+            log(Long.toString(number));
+        }
+
+        @Override
+        public void endSquareLabel(Object square, String name)
+        {
+            log(name);
+        }
+
+        @Override
+        public void endCircleLabel(Object circle, String name)
+        {
+            label = name;
+            log(name);
+        }
+
+        @Override
+        public void startCircleChild(Object circle, String name)
+        {
+            log("child " + name);
+        }
+
+        @Override
+        protected boolean skipCircleChildren(Object circle)
+        {
+            return skip && label.startsWith("A");
+        }
+
+        @Override
+        protected boolean skipSquare()
+        {
+            return skip && getLocation().offset % 3 == 0;
+        }
+
+        @Override
+        public void fold()
+        {
+            log("fold");
+        }
+    }
+}
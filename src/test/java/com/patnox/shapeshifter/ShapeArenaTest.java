@@ -0,0 +1,115 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ShapeArenaTest {
+
+    @Test
+    public void arenaTestNavigation()
+    {
+        ShapeArena arena = new ShapeArena(2);
+        new Parser(arena).parse("[12](BALL(INK[1[35]](CHARLIE)))");
+        assertEquals(6, arena.size());
+
+        int square = arena.firstRoot();
+        assertEquals(ShapeArena.SQUARE, arena.kind(square));
+        assertEquals("12", arena.label(square));
+        assertEquals(ShapeArena.NONE, arena.firstChild(square));
+
+        int ball = arena.nextSibling(square);
+        assertEquals(ShapeArena.CIRCLE, arena.kind(ball));
+        assertTrue(arena.labelEquals(ball, "BALL"));
+        assertEquals(ShapeArena.NONE, arena.nextSibling(ball));
+
+        int ink = arena.firstChild(ball);
+        assertEquals(ball, arena.parent(ink));
+        int one = arena.firstChild(ink);
+        assertEquals("35", arena.label(arena.firstChild(one)));
+        int charlie = arena.nextSibling(one);
+        assertEquals(7, arena.labelLength(charlie));
+        assertEquals('C', arena.labelCharAt(charlie, 0));
+        assertEquals(ShapeArena.NONE, arena.parent(ball));
+    }
+
+    @Test
+    public void arenaTestFailedParse()
+    {
+        ShapeArena arena = new ShapeArena();
+        Parser parser = new Parser(arena);
+        parser.parse("[1]");
+        try
+        {
+            parser.parse("(A)(B[2");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+        parser.parse("[7]");
+        assertEquals(3, arena.size());
+        int one = arena.firstRoot();
+        int a = arena.nextSibling(one);
+        assertEquals("A", arena.label(a));
+        int seven = arena.nextSibling(a);
+        assertEquals("7", arena.label(seven));
+        assertEquals(ShapeArena.NONE, arena.parent(seven));
+        assertEquals(ShapeArena.NONE, arena.nextSibling(seven));
+
+        ShapeArena failed = new ShapeArena();
+        try
+        {
+            new Parser(failed).parse("(A[1");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+        new Parser(failed).parse("[7]");
+        assertEquals(1, failed.size());
+        assertEquals("7", failed.label(failed.firstRoot()));
+        assertEquals(ShapeArena.NONE, failed.parent(failed.firstRoot()));
+    }
+
+    @Test
+    public void arenaTestCapacityOne()
+    {
+        ShapeArena arena = new ShapeArena(1);
+        new Parser(arena).parse("(BALL(INK[1[35]]))[2]");
+        assertEquals(5, arena.size());
+        assertEquals("35", arena.label(3));
+    }
+
+    @Test
+    public void arenaTestByteBuffer()
+    {
+        ShapeArena arena = new ShapeArena();
+        new Parser(arena).parse(ByteBuffer.wrap("(A[1][2])".getBytes(StandardCharsets.US_ASCII)));
+        int circle = arena.firstRoot();
+        assertEquals("A", arena.label(circle));
+        assertEquals("2", arena.label(arena.nextSibling(arena.firstChild(circle))));
+    }
+
+    @Test
+    public void arenaTestToShapes()
+    {
+        ShapeArena arena = new ShapeArena();
+        new Parser(arena).parse("(BALL(INK[1[35]](CHARLIE)))");
+        Shape ball = arena.toShapes().getChildren().get(0);
+        assertTrue(ball instanceof Circle);
+        Shape ink = ball.getChildren().get(0);
+        assertEquals("INK", ink.getLabel());
+        assertTrue(ink.getChildren().get(0) instanceof Square);
+        assertEquals("CHARLIE", ink.getChildren().get(1).getLabel());
+    }
+
+    @Test(expected = ParseException.class)
+    public void arenaTestSquaresCanOnlyContainSquares()
+    {
+        new Parser(new ShapeArena()).parse("[1(A)]");
+    }
+}
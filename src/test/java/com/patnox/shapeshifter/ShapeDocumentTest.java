@@ -0,0 +1,147 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ShapeDocumentTest {
+
+    @Test
+    public void documentTestReuse()
+    {
+        ShapeDocument document = new ShapeDocument("[12] (BALL(INK[1[35]])\n(CHARLIE))");
+        Shape square = document.getShapes().getChildren().get(0);
+        Shape ball = document.getShapes().getChildren().get(1);
+        Shape ink = ball.getChildren().get(0);
+        Shape charlie = ball.getChildren().get(1);
+
+        Shape changed = document.edit(14, 0, "[2]");
+        assertEquals("INK", changed.getLabel());
+        assertEquals("[12] (BALL(INK[2][1[35]])\n(CHARLIE))", document.getText());
+        assertSame(ball, document.getShapes().getChildren().get(1));
+        assertNotSame(ink, ball.getChildren().get(0));
+        assertEquals(2, ball.getChildren().get(0).getChildren().size());
+        assertSame(charlie, ball.getChildren().get(1));
+
+        // the inner square of INK is reused
+        Shape one = ball.getChildren().get(0).getChildren().get(1);
+        changed = document.edit(11, 3, "PEN");
+        assertEquals("PEN", changed.getLabel());
+        assertSame(one, changed.getChildren().get(1));
+        assertSame(square, document.getShapes().getChildren().get(0));
+
+        changed = document.edit(document.length(), 0, " [7]");
+        assertSame(document.getShapes(), changed);
+        assertEquals(3, document.getShapes().getChildren().size());
+        assertSame(ball, document.getShapes().getChildren().get(1));
+        assertEquals("7", document.getShapes().getChildren().get(2).getLabel());
+    }
+
+    @Test
+    public void documentTestInvalidEdit()
+    {
+        ShapeDocument document = new ShapeDocument("(A)\n(B[1])");
+        try
+        {
+            document.edit(7, 0, "(C)");
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertEquals(new Location(7, 2, 4), exception.getLocation());
+        }
+        assertEquals("(A)\n(B[1])", document.getText());
+        assertEquals("B", document.edit(6, 0, "[2]").getLabel());
+        assertEquals("(A)\n(B[2][1])", document.getText());
+    }
+
+    @Test
+    public void documentTestUnclosedEdit()
+    {
+        ShapeDocument document = new ShapeDocument("(A[1])\n(B)\n(C[2]) [3]");
+        try
+        {
+            new Parser(new ShapesHandlerImpl()).parse("(A[1]\n(B)\n(C[2]) [3]");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+            assertEquals(new Location(20, 3, 11), expected.getLocation());
+        }
+        try
+        {
+            // the region of A ends before B, the parse continues to the end of the document
+            document.edit(5, 1, "");
+            fail();
+        }
+        catch (ParseException exception)
+        {
+            assertEquals(new Location(20, 3, 11), exception.getLocation());
+        }
+        assertEquals("(A[1])\n(B)\n(C[2]) [3]", document.getText());
+        assertEquals("X", document.edit(1, 1, "X").getLabel());
+        assertEquals("(X[1])\n(B)\n(C[2]) [3]", document.getText());
+    }
+
+    @Test
+    public void documentTestRandomEdits() throws IOException
+    {
+        String[] insertions = {"", " ", "\n", "[3]", "(X)", "(Y[4])", "Z", "5", "[", "]", "(", ")", ")(W", "]["};
+        Random random = new Random(11);
+        for (int round = 0; round < 20; round++)
+        {
+            ShapeGenerator generator = new ShapeGenerator(round);
+            generator.setMaxDepth(4);
+            generator.setMaxLabelLength(3);
+            StringWriter writer = new StringWriter();
+            generator.generate(writer, 200);
+            ShapeDocument document = new ShapeDocument(writer.toString());
+            for (int i = 0; i < 50; i++)
+            {
+                String text = document.getText();
+                int offset = random.nextInt(text.length() + 1);
+                int deleted = Math.min(random.nextInt(4), text.length() - offset);
+                String inserted = insertions[random.nextInt(insertions.length)];
+                String edited = text.substring(0, offset) + inserted + text.substring(offset + deleted);
+                ShapesHandlerImpl handler = new ShapesHandlerImpl();
+                ParseException expected = null;
+                try
+                {
+                    new Parser(handler).parse(edited);
+                }
+                catch (ParseException exception)
+                {
+                    expected = exception;
+                }
+                try
+                {
+                    document.edit(offset, deleted, inserted);
+                    assertNull(edited, expected);
+                    assertEquals(edited, document.getText());
+                }
+                catch (ParseException exception)
+                {
+                    assertNotNull(edited, expected);
+                    assertEquals(text, document.getText());
+                    continue;
+                }
+                assertEquals(edited, describe(new ShapesContainer(handler.getParent())), describe(document.getShapes()));
+            }
+        }
+    }
+
+    private static String describe(Shape shape)
+    {
+        StringBuilder description = new StringBuilder();
+        description.append(shape instanceof Square ? '[' : '(').append(shape.getLabel());
+        for (Shape child : shape.getChildren())
+        {
+            description.append(describe(child));
+        }
+        return description.append(shape instanceof Square ? ']' : ')').toString();
+    }
+}
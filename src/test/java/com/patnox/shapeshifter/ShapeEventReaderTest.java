@@ -0,0 +1,103 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShapeEventReaderTest {
+
+    @Test
+    public void readerTestEvents() throws IOException
+    {
+        ShapeEventReader reader = new ShapeEventReader(" [12]\n(BALL [007])");
+        assertEquals(ShapeEventReader.START_SQUARE, reader.next());
+        assertEquals(new Location(1, 1, 2), reader.getLocation());
+        assertEquals(1, reader.getDepth());
+        assertEquals(ShapeEventReader.LABEL, reader.next());
+        assertEquals("12", reader.getLabel());
+        assertEquals(new Location(2, 1, 3), reader.getLocation());
+        assertEquals(ShapeEventReader.END, reader.next());
+        assertTrue(reader.isSquare());
+        assertEquals(new Location(4, 1, 5), reader.getLocation());
+        assertEquals(1, reader.getDepth());
+
+        assertEquals(ShapeEventReader.START_CIRCLE, reader.next());
+        assertEquals(new Location(6, 2, 1), reader.getLocation());
+        assertEquals(ShapeEventReader.LABEL, reader.next());
+        assertEquals("BALL", reader.getLabel());
+        assertEquals(ShapeEventReader.START_SQUARE, reader.next());
+        assertEquals(2, reader.getDepth());
+        assertEquals(ShapeEventReader.LABEL, reader.next());
+        assertEquals("007", reader.getLabel());
+        assertEquals(ShapeEventReader.END, reader.next());
+        assertEquals(2, reader.getDepth());
+        assertEquals(ShapeEventReader.END, reader.next());
+        assertFalse(reader.isSquare());
+        assertEquals(1, reader.getDepth());
+        assertTrue(reader.hasNext());
+        assertEquals(ShapeEventReader.END_DOCUMENT, reader.next());
+        assertFalse(reader.hasNext());
+        assertEquals(0, reader.getDepth());
+    }
+
+    @Test
+    public void readerTestSkipChildren() throws IOException
+    {
+        ShapeEventReader reader = new ShapeEventReader(
+            ByteBuffer.wrap("(A(B[1[2]](C))[3])(D)".getBytes(StandardCharsets.US_ASCII)));
+        List<String> labels = new ArrayList<>();
+        while (reader.hasNext())
+        {
+            if (reader.next() == ShapeEventReader.LABEL)
+            {
+                labels.add(reader.getLabel());
+                if (reader.getLabel().equals("B"))
+                {
+                    reader.skipChildren();
+                    assertEquals(ShapeEventReader.END, reader.getEventType());
+                    assertEquals(2, reader.getDepth());
+                    assertEquals(new Location(13, 1, 14), reader.getLocation());
+                }
+            }
+        }
+        assertEquals(Arrays.asList("A", "B", "3", "D"), labels);
+    }
+
+    @Test
+    public void readerTestStopEarly() throws IOException
+    {
+        // the invalid second shape is never read
+        ShapeEventReader reader = new ShapeEventReader(new StringReader("[1] [x]"), 10);
+        assertEquals(ShapeEventReader.START_SQUARE, reader.next());
+        reader.skipChildren();
+        reader.close();
+    }
+
+    @Test
+    public void readerTestErrors() throws IOException
+    {
+        for (String text : Arrays.asList("", "[1(A)]", "(A]", "[x]", "(A"))
+        {
+            ShapeEventReader reader = new ShapeEventReader(text);
+            try
+            {
+                while (reader.hasNext())
+                {
+                    reader.next();
+                }
+                fail(text);
+            }
+            catch (ParseException expected)
+            {
+            }
+        }
+    }
+}
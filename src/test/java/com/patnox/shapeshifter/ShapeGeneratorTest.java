@@ -0,0 +1,49 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class ShapeGeneratorTest {
+
+    @Test
+    public void generatorTestValidDocument() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(42);
+        generator.setMaxDepth(6);
+        generator.setMaxChildren(5);
+        StringWriter writer = new StringWriter();
+        long written = generator.generate(writer, 100000);
+        assertEquals(writer.toString().length(), written);
+        assertTrue(written >= 100000);
+
+        ShapeArena arena = new ShapeArena();
+        new Parser(arena).parse(writer.toString());
+        assertEquals(generator.getShapeCount(), arena.size());
+        assertEquals(0, generator.getErrorCount());
+    }
+
+    @Test
+    public void generatorTestReproducible() throws IOException
+    {
+        StringWriter first = new StringWriter();
+        new ShapeGenerator(7).generate(first, 10000);
+        StringWriter second = new StringWriter();
+        new ShapeGenerator(7).generate(second, 10000);
+        assertEquals(first.toString(), second.toString());
+    }
+
+    @Test(expected = ParseException.class)
+    public void generatorTestInvalidDocument() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(3);
+        generator.setErrorRate(0.01);
+        StringWriter writer = new StringWriter();
+        generator.generate(writer, 100000);
+        assertTrue(generator.getErrorCount() > 0);
+        new Parser(new ShapesHandlerImpl()).parse(writer.toString());
+    }
+}
@@ -0,0 +1,171 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.junit.Assert.*;
+
+public class ShapeIndexTest {
+
+    private static final String TEXT = "[12](BALL(INK[1[35]](CHARLIE)))\n(INK[007[5]](BALL[2]))(PEN(INK[3]))";
+
+    @Test
+    public void indexTestLookup()
+    {
+        ShapeIndex index = new ShapeIndex(4);
+        new Parser(index).parse(TEXT);
+        assertEquals(14, index.size());
+        assertEquals(4, index.getMaxDepth());
+        assertEquals(4, index.getParent().size());
+
+        assertArrayEquals(new int[] { 1, 9 }, index.findCircles("BALL"));
+        assertEquals("BALL", index.getShape(9).getLabel());
+        assertArrayEquals(new int[] { 2, 6, 12 }, index.findCircles("INK"));
+        assertArrayEquals(new int[0], index.findCircles("NONE"));
+        assertArrayEquals(new int[] { 4 }, index.findSquares(35));
+        assertArrayEquals(new int[] { 4 }, index.findSquares("35"));
+        assertArrayEquals(new int[] { 7 }, index.findSquares("007"));
+        assertArrayEquals(new int[0], index.findSquares(7));
+        assertEquals(35, ((Square)index.getShape(4)).getNumber());
+
+        assertArrayEquals(new int[] { 0, 1, 6, 11 }, index.atDepth(1));
+        assertArrayEquals(new int[] { 4 }, index.atDepth(4));
+        assertArrayEquals(new int[0], index.atDepth(5));
+        assertEquals(3, index.getDepth(3));
+
+        assertEquals(6, index.getEnd(1));
+        assertEquals(1, index.getEnd(0));
+        assertEquals(14, index.getEnd(11));
+        assertSame(index.getParent().get(1), index.getShape(1));
+
+        BitSet circles = index.getCircles();
+        BitSet squares = index.getSquares();
+        assertEquals(7, circles.cardinality());
+        assertEquals(7, squares.cardinality());
+        assertFalse(circles.intersects(squares));
+        assertTrue(index.isCircle(5));
+        assertFalse(index.isCircle(8));
+
+        index.reset();
+        assertEquals(0, index.size());
+        assertArrayEquals(new int[0], index.findCircles("BALL"));
+        new Parser(index).parse("(PEN[1])");
+        assertArrayEquals(new int[] { 1 }, index.findSquares(1));
+        try
+        {
+            index.getShape(2);
+            fail();
+        }
+        catch (IndexOutOfBoundsException expected)
+        {
+        }
+    }
+
+    @Test
+    public void indexTestFailedParse()
+    {
+        ShapeIndex index = new ShapeIndex();
+        Parser parser = new Parser(index);
+        try
+        {
+            parser.parse("(A[1");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+        parser.parse("[7]");
+        assertEquals(1, index.size());
+        assertEquals("7", index.getShape(0).getLabel());
+        assertArrayEquals(new int[] { 0 }, index.atDepth(1));
+        assertEquals(1, index.getMaxDepth());
+        assertArrayEquals(new int[0], index.findCircles("A"));
+        assertArrayEquals(new int[0], index.findSquares(1));
+        assertArrayEquals(new int[] { 0 }, index.findSquares(7));
+        assertTrue(index.getCircles().isEmpty());
+
+        try
+        {
+            parser.parse("(B)(C[2(D)");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+        parser.parse("(E)");
+        assertEquals(3, index.size());
+        assertArrayEquals(new int[] { 0, 1, 2 }, index.atDepth(1));
+        assertArrayEquals(new int[] { 1 }, index.findCircles("B"));
+        assertArrayEquals(new int[] { 2 }, index.findCircles("E"));
+        assertArrayEquals(new int[0], index.findCircles("C"));
+        assertEquals(3, index.getEnd(2));
+    }
+
+    @Test
+    public void indexTestMatchesWalk() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(5);
+        generator.setMaxLabelLength(1);
+        StringWriter text = new StringWriter();
+        generator.generate(text, 1 << 16);
+
+        ShapeIndex index = new ShapeIndex();
+        ShapeInterner interner = new ShapeInterner();
+        index.setShapeInterner(interner);
+        new Parser(index).parse(text.toString());
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse(text.toString());
+
+        ArrayList<Shape> walked = new ArrayList<>();
+        ArrayList<Integer> depths = new ArrayList<>();
+        walk(handler.getParent(), 1, walked, depths);
+        assertEquals(walked.size(), index.size());
+        for (int node = 0; node < index.size(); node++)
+        {
+            Shape shape = walked.get(node);
+            assertEquals(shape.getLabel(), index.getShape(node).getLabel());
+            assertEquals(shape instanceof Circle, index.isCircle(node));
+            assertEquals((int)depths.get(node), index.getDepth(node));
+            assertSame(index.getShape(node), interner.intern(index.getShape(node)));
+        }
+
+        ShapeIndex rebuilt = ShapeIndex.of(LazyShapes.parse(text.toString()));
+        assertEquals(index.size(), rebuilt.size());
+        assertEquals(index.getCircles(), rebuilt.getCircles());
+        for (String label : new String[] { "A", "B", "C" })
+        {
+            int[] circles = index.findCircles(label);
+            assertTrue(circles.length > 0);
+            assertArrayEquals(circles, rebuilt.findCircles(label));
+        }
+        for (int number = 0; number < 10; number++)
+        {
+            assertArrayEquals(index.findSquares(number), rebuilt.findSquares(number));
+        }
+        for (int depth = 1; depth <= index.getMaxDepth(); depth++)
+        {
+            int[] nodes = index.atDepth(depth);
+            assertArrayEquals(nodes, rebuilt.atDepth(depth));
+            for (int node : nodes)
+            {
+                assertEquals(index.getEnd(node), rebuilt.getEnd(node));
+            }
+        }
+        assertEquals(index.size(), Arrays.stream(index.atDepth(1)).map(node -> index.getEnd(node) - node).sum());
+    }
+
+    private static void walk(ArrayList<Shape> shapes, int depth, ArrayList<Shape> walked, ArrayList<Integer> depths)
+    {
+        for (Shape shape : shapes)
+        {
+            walked.add(shape);
+            depths.add(depth);
+            walk(shape.getChildren(), depth + 1, walked, depths);
+        }
+    }
+}
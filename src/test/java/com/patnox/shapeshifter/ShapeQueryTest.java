@@ -0,0 +1,121 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShapeQueryTest {
+
+    private static final String TEXT = "[12](BALL(INK[1[35]](CHARLIE)))\n(INK[007[5]](BALL[2]))(PEN(INK[3]))";
+
+    @Test
+    public void queryTestFind()
+    {
+        assertEquals("[35] at 15-19, depth 4, [1] at 13-20, depth 3",
+            describe(ShapeQuery.compile("(BALL)//[*]").find(TEXT)));
+        assertEquals("[35] at 15-19, depth 4, [1] at 13-20, depth 3, [5] at 40-43, depth 3, [007] at 36-44, depth 2, "
+            + "[2] at 49-52, depth 3, [3] at 62-65, depth 3",
+            describe(ShapeQuery.compile("//(INK)//[*]").find(TEXT)));
+        assertEquals("[35] at 15-19, depth 4", describe(ShapeQuery.compile("*/*/*/*").find(TEXT)));
+        assertEquals("(CHARLIE) at 20-29, depth 3", describe(ShapeQuery.compile("*/*/(*) ").find(TEXT)));
+        assertEquals("(INK) at 9-30, depth 2, (BALL) at 44-53, depth 2, (INK) at 58-66, depth 2",
+            describe(ShapeQuery.compile("*/(*)").find(TEXT)));
+        assertEquals("[007] at 36-44, depth 2", describe(ShapeQuery.compile("/(INK)/[007]").find(TEXT)));
+        assertEquals("", describe(ShapeQuery.compile("(INK)/[7]").find(TEXT)));
+        assertEquals("[12] at 0-4, depth 1", describe(ShapeQuery.compile("//[12]").find(TEXT)));
+        assertEquals("[1] at 13-20, depth 3", describe(ShapeQuery.compile("//(INK)/[1]").find(TEXT)));
+
+        List<ShapeQuery.Match> matches = new ArrayList<>();
+        new Parser(ShapeQuery.compile("//(INK)").matcher(matches::add))
+            .parse(ByteBuffer.wrap(TEXT.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(3, matches.size());
+        assertEquals("INK", matches.get(2).getLabel());
+        assertFalse(matches.get(2).isSquare());
+    }
+
+    @Test
+    public void queryTestSelect() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(3);
+        generator.setMaxLabelLength(1);
+        StringWriter text = new StringWriter();
+        generator.generate(text, 1 << 16);
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse(text.toString());
+        ShapesContainer shapes = new ShapesContainer(handler.getParent());
+        for (String expression : new String[] { "//(A)//[*]", "*/*/[5]", "//[1]/[2]", "(B)//*", "//*" })
+        {
+            ShapeQuery query = ShapeQuery.compile(expression);
+            List<Shape> selected = query.select(shapes);
+            List<Shape> lazy = query.select(LazyShapes.parse(text.toString()));
+            List<ShapeQuery.Match> found = query.find(text.toString());
+            assertEquals(expression, found.size(), selected.size());
+            assertEquals(expression, selected.size(), lazy.size());
+            for (int i = 0; i < selected.size(); i++)
+            {
+                assertEquals(selected.get(i).getLabel(), lazy.get(i).getLabel());
+            }
+        }
+        assertTrue(ShapeQuery.compile("//*").select(shapes).size() > 100);
+    }
+
+    @Test
+    public void queryTestSkippedNotValidated()
+    {
+        ShapeQuery query = ShapeQuery.compile("(BALL)");
+        for (String text : new String[] { "(X[1(B)])(BALL)", "(X(b))(BALL)", "(X(B C))(BALL)" })
+        {
+            assertEquals(text, "(BALL) at " + text.indexOf("(BALL)") + "-" + text.length() + ", depth 1",
+                describe(query.find(text)));
+        }
+        try
+        {
+            query.find("(b)(BALL)");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+        try
+        {
+            query.find("(X(B)(BALL)");
+            fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+    }
+
+    @Test
+    public void queryTestInvalid()
+    {
+        for (String expression : new String[] { "", "(ink)", "[A]", "(BALL", "(BALL)/", "(BALL)///[1]", "()", "BALL" })
+        {
+            try
+            {
+                ShapeQuery.compile(expression);
+                fail(expression);
+            }
+            catch (IllegalArgumentException expected)
+            {
+            }
+        }
+    }
+
+    private static String describe(List<ShapeQuery.Match> matches)
+    {
+        StringBuilder text = new StringBuilder();
+        for (ShapeQuery.Match match : matches)
+        {
+            text.append(text.length() > 0 ? ", " : "").append(match);
+        }
+        return text.toString();
+    }
+}
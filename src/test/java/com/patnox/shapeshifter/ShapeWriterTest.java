@@ -0,0 +1,135 @@
+package com.patnox.shapeshifter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ShapeWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeTestRoundTrip() throws IOException
+    {
+        String text = "[12](BALL(INK[1[35]](CHARLIE)))[007[99999999999999999999]](BALL)(BALL(BALL))";
+        ShapesContainer shapes = parse(text);
+        byte[] data = write(shapes);
+        assertEquals(describe(shapes), describe(new ShapeReader(new ByteArrayInputStream(data)).readAll()));
+        assertEquals(describe(shapes), describe(new ShapeReader(ByteBuffer.wrap(data)).readAll()));
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals(describe(shapes), describe(new ShapeReader(direct).readAll()));
+
+        ShapeReader reader = new ShapeReader(new ByteArrayInputStream(data));
+        assertEquals("12", reader.readShape().getLabel());
+        assertEquals("BALL", reader.readShape().getLabel());
+        assertEquals("007", reader.readShape().getLabel());
+        assertEquals(0, reader.readShape().getChildren().size());
+        assertEquals(1, reader.readShape().getChildren().size());
+        assertNull(reader.readShape());
+        assertNull(reader.readShape());
+
+        char[] label = new char[10000];
+        Arrays.fill(label, 'X');
+        shapes = parse("(" + new String(label) + ")[1]");
+        data = write(shapes);
+        assertEquals(describe(shapes), describe(new ShapeReader(new ByteArrayInputStream(data)).readAll()));
+    }
+
+    @Test
+    public void writeTestGeneratedFile() throws IOException
+    {
+        ShapeGenerator generator = new ShapeGenerator(42);
+        StringWriter text = new StringWriter();
+        generator.generate(text, 1 << 20);
+        ShapesContainer shapes = parse(text.toString());
+        Path file = folder.newFile("shapes.bin").toPath();
+        try (OutputStream out = Files.newOutputStream(file))
+        {
+            ShapeWriter writer = new ShapeWriter(out);
+            writer.writeAll(shapes);
+            writer.close();
+        }
+        assertTrue(Files.size(file) < text.toString().length());
+        String expected = describe(shapes);
+        assertEquals(expected, describe(ShapeReader.read(file)));
+        try (ShapeReader reader = new ShapeReader(Files.newInputStream(file)))
+        {
+            assertEquals(expected, describe(reader.readAll()));
+        }
+    }
+
+    @Test
+    public void writeTestCorrupt() throws IOException
+    {
+        byte[] data = write(parse("(A(B))(A[1])"));
+        for (int length = 0; length < data.length; length++)
+        {
+            try
+            {
+                new ShapeReader(ByteBuffer.wrap(Arrays.copyOf(data, length))).readAll();
+                fail();
+            }
+            catch (IOException expected)
+            {
+            }
+        }
+        data[0] = 'X';
+        try
+        {
+            new ShapeReader(ByteBuffer.wrap(data)).readAll();
+            fail();
+        }
+        catch (IOException expected)
+        {
+            assertEquals("Not shape data", expected.getMessage());
+        }
+    }
+
+    private static ShapesContainer parse(String text)
+    {
+        ShapesHandlerImpl handler = new ShapesHandlerImpl();
+        new Parser(handler).parse(text);
+        return new ShapesContainer(handler.getParent());
+    }
+
+    private static byte[] write(ShapesContainer shapes) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ShapeWriter writer = new ShapeWriter(out))
+        {
+            writer.writeAll(shapes);
+        }
+        return out.toByteArray();
+    }
+
+    private static String describe(Shape shape)
+    {
+        StringBuilder text = new StringBuilder();
+        describe(shape, text);
+        return text.toString();
+    }
+
+    private static void describe(Shape shape, StringBuilder text)
+    {
+        text.append(shape instanceof Square ? '[' : '(').append(shape.getLabel());
+        for (Shape child : shape.getChildren())
+        {
+            describe(child, text);
+        }
+        text.append(shape instanceof Square ? ']' : ')');
+    }
+}